@@ -53,6 +53,7 @@ public class AutoTable<T> extends MigTable<T> {
 	private final Map<String, Class<?>> columnTypes = new HashMap<String, Class<?>>();
 	
 	private final Map<Integer, Boolean> editable = new HashMap<Integer, Boolean>();
+	// the editors of the rows currently shown, dropped with the rows in clear()
 	private final Map<T, Map<Integer, TypeEditor<?>>> typeEditors = new HashMap<T, Map<Integer, TypeEditor<?>>>();
 	
 	public AutoTable(Class<T> clazz){
@@ -135,7 +136,8 @@ public class AutoTable<T> extends MigTable<T> {
 			}
 		case GETTER_SETTER_MODE:
 		case COMBINED_MODE:
-			return getterSetterAccess.getValue(element, columns.get(columnIndex));
+			// the columns are in the same order as the attributes
+			return getterSetterAccess.getValue(element, columnIndex);
 		default:
 			throw new IllegalArgumentException("Given mode (" + mode + ") is not one of [DIRECT_ACCESS_MODE: " + DIRECT_ACCESS_MODE
 					+ ", GETTER_SETTER_MODE: " + GETTER_SETTER_MODE
@@ -154,7 +156,7 @@ public class AutoTable<T> extends MigTable<T> {
 			break;
 		case GETTER_SETTER_MODE:
 		case COMBINED_MODE:
-			getterSetterAccess.setValue(element, columns.get(columnIndex), content);
+			getterSetterAccess.setValue(element, columnIndex, content);
 			break;
 		default:
 			throw new IllegalArgumentException("Given mode (" + mode + ") is not one of [DIRECT_ACCESS_MODE: " + DIRECT_ACCESS_MODE
@@ -210,6 +212,13 @@ public class AutoTable<T> extends MigTable<T> {
 		}
 	}
 
+	@Override
+	public void clear() {
+		// the editors reference their rows, so they have to be dropped explicitly
+		typeEditors.clear();
+		super.clear();
+	}
+
 	@Override
 	protected Component getHeaderComponentAt(int columnIndex) {
 		return new JLabel(columnNames.get(columns.get(columnIndex)));
@@ -21,6 +21,9 @@ import java.awt.Window;
 import java.awt.event.AWTEventListener;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.ContainerAdapter;
+import java.awt.event.ContainerEvent;
+import java.awt.event.ContainerListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
@@ -591,7 +594,16 @@ public class Inspector extends JPanel implements AWTEventListener {
 		
 		private final Component component;
 		private Component[] children = {};
+		// the nodes of the current children, entries of removed children are dropped as soon as they are removed
 		private final Map<Component, ComponentNode> nodes = new HashMap<Component, ComponentNode>();
+		private final ContainerListener childListener = new ContainerAdapter() {
+			
+			@Override
+			public void componentRemoved(ContainerEvent e) {
+				ComponentNode node = nodes.remove(e.getChild());
+				if(node != null) node.dispose();
+			}
+		};
 		
 		private JImage expandButton = new JImage(INVISIBLE_RETRACTED_ICON);
 		private JLabel nameLabel = new JLabel();
@@ -604,6 +616,9 @@ public class Inspector extends JPanel implements AWTEventListener {
 			setOpaque(false);
 			setFocusable(true);
 			expandButton.setFocusable(true);
+			if(component instanceof Container){
+				((Container) component).addContainerListener(childListener);
+			}
 			
 			updateNode();
 			
@@ -651,7 +666,7 @@ public class Inspector extends JPanel implements AWTEventListener {
 					for(Component child : children){
 						if(child == nodeOwner) contained = true;
 					}
-					if(!contained) nodes.remove(nodeOwner);
+					if(!contained) nodes.remove(nodeOwner).dispose();
 				}
 			}
 			
@@ -661,6 +676,19 @@ public class Inspector extends JPanel implements AWTEventListener {
 			repaint();
 		}
 		
+		/**
+		 * Stops listening to the component and drops the nodes of its children, the node cannot be used afterwards.
+		 */
+		public void dispose(){
+			if(component instanceof Container){
+				((Container) component).removeContainerListener(childListener);
+			}
+			for(ComponentNode node : nodes.values()){
+				node.dispose();
+			}
+			nodes.clear();
+		}
+		
 		public void setExpanded(boolean expanded){
 			this.expanded = expanded;
 			updateNode();
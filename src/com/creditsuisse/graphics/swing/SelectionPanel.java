@@ -39,6 +39,7 @@ public abstract class SelectionPanel<T> extends JPanel implements AdjustmentList
 
 	private List<T> sortedElements = new ArrayList<T>();
 	private List<T> filteredElements = new ArrayList<T>();
+	// one container per element of sortedElements, created on demand and dropped in remove()
 	private Map<T, JAnimationPanel> containers = new HashMap<T, JAnimationPanel>();
 
 	public final JTextField searchField = new JTextField(filter);
@@ -103,6 +104,18 @@ public abstract class SelectionPanel<T> extends JPanel implements AdjustmentList
 		}
 	}
 
+	public void remove(T element) {
+		if (!sortedElements.remove(element))
+			return;
+		filteredElements.remove(element);
+
+		JAnimationPanel container = containers.remove(element);
+		if (container != null && container.getParent() == contentContainer) {
+			contentContainer.remove(container);
+			generateContents();
+		}
+	}
+
 	public void filter(String filter) {
 		boolean changed = this.filter != filter;
 		this.filter = filter;
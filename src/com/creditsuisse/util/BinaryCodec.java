@@ -0,0 +1,640 @@
+package com.creditsuisse.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An {@link ObjectCodec} that writes objects in a compact binary format.
+ * <br/>Like JSON, the fields of objects (except transient ones), arrays, collections and maps are written as a tree.
+ * Field names are not written though, the layout of a class is taken from its cached field metadata (see {@link ClonePlan}).
+ * Numbers are written in binary and primitive arrays in bulk, so numeric data is much smaller and faster to read than JSON.
+ * <br/>The class of a value is only written if it differs from the declared type, and only once per class and stream.
+ * <br/>As fields are identified by their position, data can only be read by the same version of the classes that wrote it.
+ * Shared references are written once per reference and cycles are not supported (same as with JSON).
+ * <br/>The class of a value that differs from its declared type must be a JDK class, an enum, a registered container
+ * or a subclass of an application class the value is declared as (by the type of a field or array, or a type argument of a collection or map),
+ * so a stream cannot make the reader create arbitrary objects. Values that could not be read are rejected when they are written.
+ * <br/>The comparators of sorted collections and maps are written like other values, so they must not be lambdas.
+ * Other containers registered with {@link Cloner#registerContainerCloner(Class, ContainerCloner)} are written as their
+ * {@link ContainerCloner#elements(Object) elements} and read by filling a new instance created with their no-arg constructor.
+ */
+public class BinaryCodec implements ObjectCodec {
+
+	private static final int MAGIC = 0x47554243;
+	private static final int VERSION = 1;
+
+	// tags written in front of every non primitive value
+	private static final int NULL = 0;
+	private static final int DECLARED_CLASS = 1;
+	private static final int NEW_CLASS = 2;
+	private static final int KNOWN_CLASS = 3;
+
+	// size of the buffer used to convert primitive arrays in bulk
+	private static final int CHUNK_SIZE = 8 * 1024;
+
+	private static final ClassValue<TypeInfo> TYPES = new ClassValue<TypeInfo>() {
+		@Override
+		protected TypeInfo computeValue(Class<?> type) {
+			return new TypeInfo(type);
+		}
+	};
+
+	@Override
+	public <T> T read(InputStream in, Class<T> type) throws IOException {
+		DataInputStream input = new DataInputStream(in);
+		if(input.readInt() != MAGIC) throw new IOException("Not a binary codec stream.");
+		int version = input.readUnsignedByte();
+		if(version != VERSION) throw new IOException("Unsupported binary codec version: " + version);
+		try{
+			return type.cast(new Reader(input, type.getClassLoader()).readValue(type, type));
+		}catch(IOException | RuntimeException e){
+			throw e;
+		}catch(Throwable e){
+			throw new IOException("Failed to read " + type.getName(), e);
+		}
+	}
+
+	@Override
+	public void write(OutputStream out, Object value, Class<?> type) throws IOException {
+		DataOutputStream output = new DataOutputStream(out);
+		output.writeInt(MAGIC);
+		output.writeByte(VERSION);
+		try{
+			new Writer(output).writeValue(value, type, type);
+		}catch(IOException | RuntimeException e){
+			throw e;
+		}catch(Throwable e){
+			throw new IOException("Failed to write " + type.getName(), e);
+		}
+		output.flush();
+	}
+
+	private static enum Kind {
+		BOOLEAN, BYTE, CHAR, SHORT, INT, LONG, FLOAT, DOUBLE, STRING, BIG_INTEGER, BIG_DECIMAL, ENUM, PRIMITIVE_ARRAY, OBJECT_ARRAY, COLLECTION, MAP, CONTAINER, OBJECT;
+	}
+
+	/**
+	 * Drops the cached information on the given class, e.g. because a {@link ContainerCloner} has been registered for it.
+	 */
+	static void invalidate(Class<?> type){
+		TYPES.remove(type);
+	}
+
+	/**
+	 * The cached information on how to write and read instances of one class.
+	 */
+	private static class TypeInfo {
+
+		private final Kind kind;
+
+		// objects: the plan and the indices (in the plan) of the fields to write, with their types
+		private final ClonePlan plan;
+		private final int[] fields;
+		private final Class<?>[] fieldTypes;
+		private final Type[] fieldGenericTypes;
+
+		// collections, maps and other containers: the constructor to create instances with, null if a replacement type has to be used
+		private final Constructor<?> constructor;
+		// sorted collections and maps: the constructor taking the comparator, null if a replacement type has to be used
+		private final Constructor<?> comparatorConstructor;
+		// other containers: the cloner to get their elements from and to fill them with
+		private final ContainerCloner<Object> containerCloner;
+
+		private TypeInfo(Class<?> type){
+			kind = kindOf(type);
+			Constructor<?> constructor = null;
+			Constructor<?> comparatorConstructor = null;
+			ClonePlan plan = null;
+			int[] fields = null;
+			Class<?>[] fieldTypes = null;
+			Type[] fieldGenericTypes = null;
+			if(kind == Kind.COLLECTION || kind == Kind.MAP || kind == Kind.CONTAINER){
+				// unmodifiable and other special collections and maps are replaced by a standard implementation
+				constructor = getConstructor(type);
+				if(SortedSet.class.isAssignableFrom(type) || SortedMap.class.isAssignableFrom(type)){
+					comparatorConstructor = getConstructor(type, Comparator.class);
+				}
+			}else if(kind == Kind.OBJECT){
+				plan = ClonePlan.of(type);
+				List<Integer> persisted = new ArrayList<Integer>();
+				for(int i = 0; i < plan.getFieldCount(); i++){
+					if(!Modifier.isTransient(plan.getField(i).getModifiers())){
+						persisted.add(i);
+					}
+				}
+				fields = new int[persisted.size()];
+				fieldTypes = new Class<?>[persisted.size()];
+				fieldGenericTypes = new Type[persisted.size()];
+				for(int i = 0; i < fields.length; i++){
+					fields[i] = persisted.get(i);
+					fieldTypes[i] = plan.getField(fields[i]).getType();
+					fieldGenericTypes[i] = plan.getField(fields[i]).getGenericType();
+				}
+			}
+			this.constructor = constructor;
+			this.comparatorConstructor = comparatorConstructor;
+			this.containerCloner = kind == Kind.CONTAINER ? Cloner.getContainerCloner(type) : null;
+			this.plan = plan;
+			this.fields = fields;
+			this.fieldTypes = fieldTypes;
+			this.fieldGenericTypes = fieldGenericTypes;
+		}
+
+		private static Kind kindOf(Class<?> type){
+			if(type.isArray()) return type.getComponentType().isPrimitive() ? Kind.PRIMITIVE_ARRAY : Kind.OBJECT_ARRAY;
+			if(type == Boolean.class) return Kind.BOOLEAN;
+			if(type == Byte.class) return Kind.BYTE;
+			if(type == Character.class) return Kind.CHAR;
+			if(type == Short.class) return Kind.SHORT;
+			if(type == Integer.class) return Kind.INT;
+			if(type == Long.class) return Kind.LONG;
+			if(type == Float.class) return Kind.FLOAT;
+			if(type == Double.class) return Kind.DOUBLE;
+			if(type == String.class) return Kind.STRING;
+			if(type == BigInteger.class) return Kind.BIG_INTEGER;
+			if(type == BigDecimal.class) return Kind.BIG_DECIMAL;
+			if(Enum.class.isAssignableFrom(type)) return Kind.ENUM;
+			if(Collection.class.isAssignableFrom(type)) return Kind.COLLECTION;
+			if(Map.class.isAssignableFrom(type)) return Kind.MAP;
+			if(Cloner.getContainerCloner(type) != null) return Kind.CONTAINER;
+			return Kind.OBJECT;
+		}
+
+		private static Constructor<?> getConstructor(Class<?> type, Class<?>... parameterTypes){
+			try{
+				Constructor<?> constructor = type.getDeclaredConstructor(parameterTypes);
+				constructor.setAccessible(true);
+				return constructor;
+			}catch(NoSuchMethodException | RuntimeException e){
+				return null;
+			}
+		}
+
+		/**
+		 * @param comparator the comparator of a sorted collection, null for natural ordering (and for other collections)
+		 */
+		@SuppressWarnings("unchecked")
+		private Collection<Object> newCollection(Class<?> type, int size, Comparator<?> comparator) throws Exception {
+			if(comparator != null){
+				if(comparatorConstructor != null) return (Collection<Object>) comparatorConstructor.newInstance(comparator);
+				if(constructor != null) throw new IOException("Cannot restore the comparator of " + type.getName() + ", it has no constructor taking a comparator");
+				return new TreeSet<Object>((Comparator<Object>) comparator);
+			}
+			if(constructor != null) return (Collection<Object>) constructor.newInstance();
+			if(SortedSet.class.isAssignableFrom(type)) return new TreeSet<Object>();
+			if(Set.class.isAssignableFrom(type)) return new LinkedHashSet<Object>(Math.max(size * 4 / 3 + 1, 16));
+			if(Queue.class.isAssignableFrom(type)) return new LinkedList<Object>();
+			return new ArrayList<Object>(size);
+		}
+
+		/**
+		 * @param comparator the comparator of a sorted map, null for natural ordering (and for other maps)
+		 */
+		@SuppressWarnings("unchecked")
+		private Map<Object, Object> newMap(Class<?> type, int size, Comparator<?> comparator) throws Exception {
+			if(comparator != null){
+				if(comparatorConstructor != null) return (Map<Object, Object>) comparatorConstructor.newInstance(comparator);
+				if(constructor != null) throw new IOException("Cannot restore the comparator of " + type.getName() + ", it has no constructor taking a comparator");
+				return new TreeMap<Object, Object>((Comparator<Object>) comparator);
+			}
+			if(constructor != null) return (Map<Object, Object>) constructor.newInstance();
+			if(SortedMap.class.isAssignableFrom(type)) return new TreeMap<Object, Object>();
+			return new LinkedHashMap<Object, Object>(Math.max(size * 4 / 3 + 1, 16));
+		}
+	}
+
+	/**
+	 * The state of writing one stream.
+	 */
+	private static class Writer {
+
+		private final DataOutputStream out;
+		private final Map<Class<?>, Integer> classes = new HashMap<Class<?>, Integer>();
+		private byte[] chunk;
+
+		private Writer(DataOutputStream out){
+			this.out = out;
+		}
+
+		/**
+		 * @param declaredType the type the reader will pass for the value, its class is only written if it differs
+		 * @param genericType the type the value is declared as, including type arguments, to check whether it may be read
+		 */
+		private void writeValue(Object value, Class<?> declaredType, Type genericType) throws Throwable {
+			if(value == null){
+				out.writeByte(NULL);
+				return;
+			}
+			Class<?> type = value.getClass();
+			if(type == declaredType){
+				out.writeByte(DECLARED_CLASS);
+			}else{
+				if(!isAllowed(type, genericType)){
+					throw new IOException("Cannot write " + type.getName() + " as " + genericType.getTypeName() + ", it would not be read (see BinaryCodec)");
+				}
+				Integer index = classes.get(type);
+				if(index == null){
+					out.writeByte(NEW_CLASS);
+					writeString(type.getName());
+					classes.put(type, classes.size());
+				}else{
+					out.writeByte(KNOWN_CLASS);
+					writeLength(index);
+				}
+			}
+
+			TypeInfo info = TYPES.get(type);
+			switch(info.kind){
+			case BOOLEAN: out.writeBoolean((Boolean) value); break;
+			case BYTE: out.writeByte((Byte) value); break;
+			case CHAR: out.writeChar((Character) value); break;
+			case SHORT: out.writeShort((Short) value); break;
+			case INT: out.writeInt((Integer) value); break;
+			case LONG: out.writeLong((Long) value); break;
+			case FLOAT: out.writeFloat((Float) value); break;
+			case DOUBLE: out.writeDouble((Double) value); break;
+			case STRING: writeString((String) value); break;
+			case BIG_INTEGER: writeString(value.toString()); break;
+			case BIG_DECIMAL: writeString(value.toString()); break;
+			case ENUM: writeString(((Enum<?>) value).name()); break;
+			case PRIMITIVE_ARRAY: writePrimitiveArray(value, type.getComponentType()); break;
+			case OBJECT_ARRAY:
+				Object[] array = (Object[]) value;
+				Class<?> componentType = type.getComponentType();
+				writeLength(array.length);
+				Type genericComponentType = componentTypeOf(genericType, componentType);
+				for(Object element : array){
+					writeValue(element, componentType, genericComponentType);
+				}
+				break;
+			case COLLECTION:
+				// the elements are copied first, so the written size always matches the written elements
+				Object[] elements = ((Collection<?>) value).toArray();
+				writeLength(elements.length);
+				if(value instanceof SortedSet) writeComparator(((SortedSet<?>) value).comparator());
+				Type elementType = typeArgument(genericType, Collection.class, 0);
+				for(Object element : elements){
+					writeValue(element, Object.class, elementType);
+				}
+				break;
+			case MAP:
+				Object[] entries = ((Map<?, ?>) value).entrySet().toArray();
+				writeLength(entries.length);
+				if(value instanceof SortedMap) writeComparator(((SortedMap<?, ?>) value).comparator());
+				Type keyType = typeArgument(genericType, Map.class, 0);
+				Type valueType = typeArgument(genericType, Map.class, 1);
+				for(Object entry : entries){
+					writeValue(((Map.Entry<?, ?>) entry).getKey(), Object.class, keyType);
+					writeValue(((Map.Entry<?, ?>) entry).getValue(), Object.class, valueType);
+				}
+				break;
+			case CONTAINER:
+				if(info.constructor == null){
+					throw new IOException("Cannot write " + type.getName() + ", a container registered with Cloner.registerContainerCloner needs a no-arg constructor to be read");
+				}
+				Object[] containerElements = info.containerCloner.elements(value);
+				writeLength(containerElements.length);
+				for(Object element : containerElements){
+					writeValue(element, Object.class, Object.class);
+				}
+				break;
+			case OBJECT:
+				for(int i = 0; i < info.fields.length; i++){
+					Object fieldValue = info.plan.getFieldValue(value, info.fields[i]);
+					Class<?> fieldType = info.fieldTypes[i];
+					if(fieldType.isPrimitive()){
+						writePrimitive(fieldValue, fieldType);
+					}else{
+						writeValue(fieldValue, fieldType, info.fieldGenericTypes[i]);
+					}
+				}
+				break;
+			}
+		}
+
+		private void writeComparator(Comparator<?> comparator) throws Throwable {
+			if(comparator != null && comparator.getClass().isSynthetic()){
+				throw new IOException("Cannot write comparator " + comparator.getClass().getName() + ", lambdas and method references cannot be read");
+			}
+			writeValue(comparator, Comparator.class, Comparator.class);
+		}
+
+		private void writePrimitive(Object value, Class<?> type) throws IOException {
+			if(type == int.class) out.writeInt((Integer) value);
+			else if(type == double.class) out.writeDouble((Double) value);
+			else if(type == long.class) out.writeLong((Long) value);
+			else if(type == boolean.class) out.writeBoolean((Boolean) value);
+			else if(type == float.class) out.writeFloat((Float) value);
+			else if(type == short.class) out.writeShort((Short) value);
+			else if(type == byte.class) out.writeByte((Byte) value);
+			else out.writeChar((Character) value);
+		}
+
+		private void writePrimitiveArray(Object array, Class<?> componentType) throws IOException {
+			int length = Array.getLength(array);
+			writeLength(length);
+			if(componentType == byte.class){
+				out.write((byte[]) array);
+				return;
+			}
+			if(componentType == boolean.class){
+				for(boolean element : (boolean[]) array){
+					out.writeBoolean(element);
+				}
+				return;
+			}
+
+			// the other types are converted chunk by chunk through a byte buffer
+			if(chunk == null) chunk = new byte[CHUNK_SIZE];
+			int elementSize = elementSize(componentType);
+			int elementsPerChunk = CHUNK_SIZE / elementSize;
+			ByteBuffer buffer = ByteBuffer.wrap(chunk);
+			for(int offset = 0; offset < length; offset += elementsPerChunk){
+				int count = Math.min(elementsPerChunk, length - offset);
+				buffer.clear();
+				if(componentType == double.class) buffer.asDoubleBuffer().put((double[]) array, offset, count);
+				else if(componentType == int.class) buffer.asIntBuffer().put((int[]) array, offset, count);
+				else if(componentType == long.class) buffer.asLongBuffer().put((long[]) array, offset, count);
+				else if(componentType == float.class) buffer.asFloatBuffer().put((float[]) array, offset, count);
+				else if(componentType == short.class) buffer.asShortBuffer().put((short[]) array, offset, count);
+				else buffer.asCharBuffer().put((char[]) array, offset, count);
+				out.write(chunk, 0, count * elementSize);
+			}
+		}
+
+		private void writeString(String value) throws IOException {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeLength(bytes.length);
+			out.write(bytes);
+		}
+
+		/**
+		 * Writes a non negative int using 7 bits per byte, small lengths only take one byte.
+		 */
+		private void writeLength(int length) throws IOException {
+			while((length & ~0x7F) != 0){
+				out.writeByte((length & 0x7F) | 0x80);
+				length >>>= 7;
+			}
+			out.writeByte(length);
+		}
+	}
+
+	/**
+	 * The state of reading one stream.
+	 */
+	private static class Reader {
+
+		private final DataInputStream in;
+		private final ClassLoader classLoader;
+		private final List<Class<?>> classes = new ArrayList<Class<?>>();
+		private byte[] chunk;
+
+		private Reader(DataInputStream in, ClassLoader classLoader){
+			this.in = in;
+			this.classLoader = classLoader != null ? classLoader : Thread.currentThread().getContextClassLoader();
+		}
+
+		/**
+		 * @param declaredType the type the writer passed for the value
+		 * @param genericType the type the value is declared as, including type arguments, classes read from the stream must match it
+		 */
+		private Object readValue(Class<?> declaredType, Type genericType) throws Throwable {
+			Class<?> type;
+			int tag = in.readUnsignedByte();
+			switch(tag){
+			case NULL: return null;
+			case DECLARED_CLASS: type = declaredType; break;
+			case NEW_CLASS:
+				String name = readString();
+				try{
+					type = Class.forName(name, false, classLoader);
+				}catch(ClassNotFoundException e){
+					throw new IOException("Unknown class: " + name, e);
+				}
+				classes.add(type);
+				break;
+			case KNOWN_CLASS:
+				int index = readLength();
+				if(index >= classes.size()) throw new IOException("Invalid class index: " + index);
+				type = classes.get(index);
+				break;
+			default: throw new IOException("Invalid tag: " + tag);
+			}
+			// checked before anything is created, the stream may have been crafted or corrupted
+			if(type != declaredType && !isAllowed(type, genericType)){
+				throw new IOException(type.getName() + " cannot be read as " + genericType.getTypeName());
+			}
+
+			TypeInfo info = TYPES.get(type);
+			switch(info.kind){
+			case BOOLEAN: return in.readBoolean();
+			case BYTE: return in.readByte();
+			case CHAR: return in.readChar();
+			case SHORT: return in.readShort();
+			case INT: return in.readInt();
+			case LONG: return in.readLong();
+			case FLOAT: return in.readFloat();
+			case DOUBLE: return in.readDouble();
+			case STRING: return readString();
+			case BIG_INTEGER: return new BigInteger(readString());
+			case BIG_DECIMAL: return new BigDecimal(readString());
+			case ENUM:
+				@SuppressWarnings({ "unchecked", "rawtypes" })
+				Object constant = Enum.valueOf((Class) (type.isEnum() ? type : type.getSuperclass()), readString());
+				return constant;
+			case PRIMITIVE_ARRAY: return readPrimitiveArray(type.getComponentType());
+			case OBJECT_ARRAY:
+				Class<?> componentType = type.getComponentType();
+				Type genericComponentType = componentTypeOf(genericType, componentType);
+				Object[] array = (Object[]) Array.newInstance(componentType, readLength());
+				for(int i = 0; i < array.length; i++){
+					array[i] = readValue(componentType, genericComponentType);
+				}
+				return array;
+			case COLLECTION:
+				int size = readLength();
+				Comparator<?> comparator = SortedSet.class.isAssignableFrom(type) ? readComparator() : null;
+				Collection<Object> collection = info.newCollection(type, size, comparator);
+				Type elementType = typeArgument(genericType, Collection.class, 0);
+				for(int i = 0; i < size; i++){
+					collection.add(readValue(Object.class, elementType));
+				}
+				return collection;
+			case MAP:
+				int entries = readLength();
+				Comparator<?> mapComparator = SortedMap.class.isAssignableFrom(type) ? readComparator() : null;
+				Map<Object, Object> map = info.newMap(type, entries, mapComparator);
+				Type keyType = typeArgument(genericType, Map.class, 0);
+				Type valueType = typeArgument(genericType, Map.class, 1);
+				for(int i = 0; i < entries; i++){
+					Object key = readValue(Object.class, keyType);
+					map.put(key, readValue(Object.class, valueType));
+				}
+				return map;
+			case CONTAINER:
+				if(info.constructor == null){
+					throw new IOException("Cannot read " + type.getName() + ", a container registered with Cloner.registerContainerCloner needs a no-arg constructor to be read");
+				}
+				Object[] containerElements = new Object[readLength()];
+				for(int i = 0; i < containerElements.length; i++){
+					containerElements[i] = readValue(Object.class, Object.class);
+				}
+				Object container = info.constructor.newInstance();
+				info.containerCloner.fill(container, containerElements);
+				return container;
+			default:
+				Object object = info.plan.newInstance();
+				for(int i = 0; i < info.fields.length; i++){
+					Class<?> fieldType = info.fieldTypes[i];
+					info.plan.setFieldValue(object, info.fields[i], fieldType.isPrimitive() ? readPrimitive(fieldType) : readValue(fieldType, info.fieldGenericTypes[i]));
+				}
+				return object;
+			}
+		}
+
+		private Comparator<?> readComparator() throws Throwable {
+			return (Comparator<?>) readValue(Comparator.class, Comparator.class);
+		}
+
+		private Object readPrimitive(Class<?> type) throws IOException {
+			if(type == int.class) return in.readInt();
+			if(type == double.class) return in.readDouble();
+			if(type == long.class) return in.readLong();
+			if(type == boolean.class) return in.readBoolean();
+			if(type == float.class) return in.readFloat();
+			if(type == short.class) return in.readShort();
+			if(type == byte.class) return in.readByte();
+			return in.readChar();
+		}
+
+		private Object readPrimitiveArray(Class<?> componentType) throws IOException {
+			int length = readLength();
+			Object array = Array.newInstance(componentType, length);
+			if(componentType == byte.class){
+				in.readFully((byte[]) array);
+				return array;
+			}
+			if(componentType == boolean.class){
+				boolean[] booleans = (boolean[]) array;
+				for(int i = 0; i < length; i++){
+					booleans[i] = in.readBoolean();
+				}
+				return array;
+			}
+
+			if(chunk == null) chunk = new byte[CHUNK_SIZE];
+			int elementSize = elementSize(componentType);
+			int elementsPerChunk = CHUNK_SIZE / elementSize;
+			ByteBuffer buffer = ByteBuffer.wrap(chunk);
+			for(int offset = 0; offset < length; offset += elementsPerChunk){
+				int count = Math.min(elementsPerChunk, length - offset);
+				in.readFully(chunk, 0, count * elementSize);
+				buffer.clear();
+				if(componentType == double.class) buffer.asDoubleBuffer().get((double[]) array, offset, count);
+				else if(componentType == int.class) buffer.asIntBuffer().get((int[]) array, offset, count);
+				else if(componentType == long.class) buffer.asLongBuffer().get((long[]) array, offset, count);
+				else if(componentType == float.class) buffer.asFloatBuffer().get((float[]) array, offset, count);
+				else if(componentType == short.class) buffer.asShortBuffer().get((short[]) array, offset, count);
+				else buffer.asCharBuffer().get((char[]) array, offset, count);
+			}
+			return array;
+		}
+
+		private String readString() throws IOException {
+			byte[] bytes = new byte[readLength()];
+			in.readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		private int readLength() throws IOException {
+			int length = 0;
+			for(int shift = 0; shift < 32; shift += 7){
+				int b = in.readUnsignedByte();
+				length |= (b & 0x7F) << shift;
+				if((b & 0x80) == 0){
+					if(length < 0) throw new IOException("Invalid length: " + length);
+					return length;
+				}
+			}
+			throw new IOException("Invalid length.");
+		}
+	}
+
+	/**
+	 * @param type the class of a value that differs from its declared type
+	 * @param declaredType the type the value is declared as
+	 * @return true if instances of the class may be read, see the class comment
+	 */
+	private static boolean isAllowed(Class<?> type, Type declaredType){
+		Class<?> bound = erasure(declaredType);
+		if(!bound.isAssignableFrom(type)) return false;
+		// JDK classes (including primitive arrays) are loaded by the bootstrap loader
+		return type.getClassLoader() == null || Enum.class.isAssignableFrom(type) || Cloner.getContainerCloner(type) != null
+				|| bound.getClassLoader() != null;
+	}
+
+	/**
+	 * @return the type argument of a collection (index 0) or map (0 for the keys, 1 for the values) type, Object if it is not declared
+	 */
+	private static Type typeArgument(Type type, Class<?> containerType, int index){
+		if(type instanceof ParameterizedType){
+			ParameterizedType parameterized = (ParameterizedType) type;
+			Type[] arguments = parameterized.getActualTypeArguments();
+			if(containerType.isAssignableFrom(erasure(parameterized.getRawType())) && arguments.length == (containerType == Map.class ? 2 : 1)){
+				return arguments[index];
+			}
+		}
+		return Object.class;
+	}
+
+	private static Type componentTypeOf(Type arrayType, Class<?> componentType){
+		return arrayType instanceof GenericArrayType ? ((GenericArrayType) arrayType).getGenericComponentType() : componentType;
+	}
+
+	private static Class<?> erasure(Type type){
+		if(type instanceof Class) return (Class<?>) type;
+		if(type instanceof ParameterizedType) return erasure(((ParameterizedType) type).getRawType());
+		if(type instanceof GenericArrayType) return Array.newInstance(erasure(((GenericArrayType) type).getGenericComponentType()), 0).getClass();
+		if(type instanceof WildcardType) return erasure(((WildcardType) type).getUpperBounds()[0]);
+		if(type instanceof TypeVariable) return erasure(((TypeVariable<?>) type).getBounds()[0]);
+		return Object.class;
+	}
+
+	private static int elementSize(Class<?> primitiveType){
+		if(primitiveType == double.class || primitiveType == long.class) return 8;
+		if(primitiveType == int.class || primitiveType == float.class) return 4;
+		return 2;
+	}
+
+}
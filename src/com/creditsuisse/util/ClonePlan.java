@@ -0,0 +1,243 @@
+package com.creditsuisse.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.objenesis.instantiator.ObjectInstantiator;
+
+/**
+ * The compiled instructions on how to clone instances of one class.
+ * <br/>Fields are looked up and made accessible once, after that every copy is done through {@link MethodHandle}s
+ * without reflective lookups or modifier changes.
+ * <br/>Plans are created lazily and cached per class, use {@link #of(Class)} to get one.
+ */
+class ClonePlan {
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	private static final ClassValue<ClonePlan> PLANS = new ClassValue<ClonePlan>() {
+		@Override
+		protected ClonePlan computeValue(Class<?> type) {
+			return new ClonePlan(type);
+		}
+	};
+
+	private final Class<?> type;
+	private final boolean array;
+	// arrays of primitives or immutable final types, can be copied in bulk without looking at the elements
+	private final boolean flatArray;
+	private final ContainerCloner<Object> containerCloner;
+	private final ObjectInstantiator<?> instantiator;
+
+	// copies primitive fields without boxing: (Object target, Object source)void
+	private final MethodHandle[] primitiveCopiers;
+
+	// getters (Object)Object and setters (Object, Object)void of all non primitive fields, same order
+	private final MethodHandle[] referenceGetters;
+	private final MethodHandle[] referenceSetters;
+	private final Field[] referenceFields;
+
+	// boxing getters (Object)Object and setters (Object, Object)void of all primitive fields, only used for generic access
+	private final MethodHandle[] primitiveGetters;
+	private final MethodHandle[] primitiveSetters;
+	private final Field[] primitiveFields;
+
+	/**
+	 * @param type the class to get the plan for
+	 * @return the cached clone plan of the given class
+	 */
+	static ClonePlan of(Class<?> type){
+		return PLANS.get(type);
+	}
+
+	/**
+	 * Drops the cached plan of the given class, it will be recreated on the next access.
+	 * @param type the class whose plan is outdated
+	 */
+	static void invalidate(Class<?> type){
+		PLANS.remove(type);
+	}
+
+	private ClonePlan(Class<?> type){
+		this.type = type;
+		this.array = type.isArray();
+		this.flatArray = array && isFlatElementType(type.getComponentType());
+		this.containerCloner = Cloner.getContainerCloner(type);
+		if(array || containerCloner != null){
+			instantiator = null;
+			primitiveCopiers = new MethodHandle[0];
+			referenceGetters = new MethodHandle[0];
+			referenceSetters = new MethodHandle[0];
+			referenceFields = new Field[0];
+			primitiveGetters = new MethodHandle[0];
+			primitiveSetters = new MethodHandle[0];
+			primitiveFields = new Field[0];
+			return;
+		}
+
+		instantiator = Cloner.OBJENESIS.getInstantiatorOf(type);
+		List<MethodHandle> primitiveCopiers = new ArrayList<MethodHandle>();
+		List<MethodHandle> referenceGetters = new ArrayList<MethodHandle>();
+		List<MethodHandle> referenceSetters = new ArrayList<MethodHandle>();
+		List<Field> referenceFields = new ArrayList<Field>();
+		List<MethodHandle> primitiveGetters = new ArrayList<MethodHandle>();
+		List<MethodHandle> primitiveSetters = new ArrayList<MethodHandle>();
+		List<Field> primitiveFields = new ArrayList<Field>();
+		try{
+			for(Field field : ReflectionUtil.getAllFieldsInHierarchy(type)){
+				field.setAccessible(true);
+				MethodHandle getter = LOOKUP.unreflectGetter(field);
+				MethodHandle setter = LOOKUP.unreflectSetter(field);
+				if(field.getType().isPrimitive()){
+					// setter(target, getter(source)) keeps the value unboxed
+					MethodHandle copier = MethodHandles.collectArguments(setter, 1, getter);
+					primitiveCopiers.add(copier.asType(MethodType.methodType(void.class, Object.class, Object.class)));
+					primitiveGetters.add(getter.asType(MethodType.methodType(Object.class, Object.class)));
+					primitiveSetters.add(setter.asType(MethodType.methodType(void.class, Object.class, Object.class)));
+					primitiveFields.add(field);
+				}else{
+					referenceGetters.add(getter.asType(MethodType.methodType(Object.class, Object.class)));
+					referenceSetters.add(setter.asType(MethodType.methodType(void.class, Object.class, Object.class)));
+					referenceFields.add(field);
+				}
+			}
+		}catch(IllegalAccessException e){
+			throw new IllegalStateException("Cannot access fields of " + type.getName(), e);
+		}
+		this.primitiveCopiers = primitiveCopiers.toArray(new MethodHandle[primitiveCopiers.size()]);
+		this.referenceGetters = referenceGetters.toArray(new MethodHandle[referenceGetters.size()]);
+		this.referenceSetters = referenceSetters.toArray(new MethodHandle[referenceSetters.size()]);
+		this.referenceFields = referenceFields.toArray(new Field[referenceFields.size()]);
+		this.primitiveGetters = primitiveGetters.toArray(new MethodHandle[primitiveGetters.size()]);
+		this.primitiveSetters = primitiveSetters.toArray(new MethodHandle[primitiveSetters.size()]);
+		this.primitiveFields = primitiveFields.toArray(new Field[primitiveFields.size()]);
+	}
+
+	/**
+	 * @param componentType the component type of an array
+	 * @return true if no element that can be stored in such an array ever has to be cloned
+	 */
+	private static boolean isFlatElementType(Class<?> componentType){
+		if(componentType.isPrimitive()){
+			return true;
+		}
+		// a subclass of a non final type might be mutable
+		return Cloner.isImmutable(componentType) && (Modifier.isFinal(componentType.getModifiers()) || Cloner.isImmutableHierarchy(componentType));
+	}
+
+	Class<?> getType(){
+		return type;
+	}
+
+	boolean isArray(){
+		return array;
+	}
+
+	/**
+	 * @return true if this is an array whose elements never have to be cloned (primitives or immutable final types)
+	 */
+	boolean isFlatArray(){
+		return flatArray;
+	}
+
+	/**
+	 * Creates a copy of the given array, this only copies the element references.
+	 * @param source an array of the planned type
+	 * @return a new array of the same type and length containing the same elements
+	 */
+	Object copyArray(Object source){
+		int length = Array.getLength(source);
+		Object copy = Array.newInstance(type.getComponentType(), length);
+		System.arraycopy(source, 0, copy, 0, length);
+		return copy;
+	}
+
+	/**
+	 * @return the cloner to use for this container type or null if this is not a container
+	 */
+	ContainerCloner<Object> getContainerCloner(){
+		return containerCloner;
+	}
+
+	/**
+	 * @return a new, uninitialized instance of the planned class (no constructor is called)
+	 */
+	Object newInstance(){
+		return instantiator.newInstance();
+	}
+
+	/**
+	 * Copies all primitive fields from source to target.
+	 */
+	void copyPrimitives(Object source, Object target) throws Throwable {
+		for(MethodHandle copier : primitiveCopiers){
+			copier.invokeExact(target, source);
+		}
+	}
+
+	/**
+	 * @return the amount of non primitive fields
+	 */
+	int getReferenceCount(){
+		return referenceGetters.length;
+	}
+
+	/**
+	 * @param index the index of the non primitive field
+	 * @return the field at the given index
+	 */
+	Field getReferenceField(int index){
+		return referenceFields[index];
+	}
+
+	Object getReference(Object source, int index) throws Throwable {
+		return (Object) referenceGetters[index].invokeExact(source);
+	}
+
+	void setReference(Object target, int index, Object value) throws Throwable {
+		referenceSetters[index].invokeExact(target, value);
+	}
+
+	/**
+	 * @return the amount of fields, the non primitive fields come first (same indices as for the reference methods)
+	 */
+	int getFieldCount(){
+		return referenceGetters.length + primitiveGetters.length;
+	}
+
+	/**
+	 * @param index the index of the field, see {@link #getFieldCount()}
+	 * @return the field at the given index
+	 */
+	Field getField(int index){
+		int references = referenceFields.length;
+		return index < references ? referenceFields[index] : primitiveFields[index - references];
+	}
+
+	/**
+	 * Gets the value of any field, primitives are boxed.
+	 */
+	Object getFieldValue(Object source, int index) throws Throwable {
+		int references = referenceGetters.length;
+		return index < references ? (Object) referenceGetters[index].invokeExact(source) : (Object) primitiveGetters[index - references].invokeExact(source);
+	}
+
+	/**
+	 * Sets the value of any field, primitives have to be passed boxed.
+	 */
+	void setFieldValue(Object target, int index, Object value) throws Throwable {
+		int references = referenceSetters.length;
+		if(index < references){
+			referenceSetters[index].invokeExact(target, value);
+		}else{
+			primitiveSetters[index - references].invokeExact(target, value);
+		}
+	}
+
+}
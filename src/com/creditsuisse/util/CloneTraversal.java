@@ -0,0 +1,275 @@
+package com.creditsuisse.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.creditsuisse.util.Cloner.CloneException;
+
+/**
+ * Walks an object graph and deep clones it without recursion.
+ * <br/>Every object reached is first allocated as an empty shell and registered in an identity map,
+ * filling the shell is deferred to an explicit work stack. This keeps the stack depth constant,
+ * no matter how deep the graph is (for example very long linked lists).
+ */
+class CloneTraversal {
+
+	// maps every visited original to its clone, unused if lookup and register are overridden
+	private final ExactEqualityMap<Object, Object> clones;
+
+	// pairs of (original, clone) that still have to be filled, always pushed and popped together
+	protected final ArrayDeque<Object> pending = new ArrayDeque<Object>();
+
+	// hashed containers that can only be filled once all other objects are complete
+	protected final List<ContainerFill> deferred = new ArrayList<ContainerFill>();
+
+	CloneTraversal(){
+		this(new ExactEqualityMap<Object, Object>());
+	}
+
+	CloneTraversal(ExactEqualityMap<Object, Object> clones){
+		this.clones = clones;
+	}
+
+	/**
+	 * @param original an object of the graph
+	 * @return the clone registered for the given object or null if it has not been visited yet
+	 */
+	protected Object lookup(Object original){
+		return clones.get(original);
+	}
+
+	/**
+	 * Registers the clone of the given original.
+	 * @param original an object of the graph
+	 * @param clone the newly created clone
+	 * @return the clone that is registered for the original after this call, if it is not the given one the original has been visited concurrently
+	 */
+	protected Object register(Object original, Object clone){
+		clones.put(original, clone);
+		return clone;
+	}
+
+	/**
+	 * Deep clones the given object and everything reachable from it.
+	 * @param object the root of the graph to clone
+	 * @return the clone of the given root
+	 */
+	Object run(Object object){
+		Object clone = resolve(object);
+		drain();
+		fillDeferred();
+		return clone;
+	}
+
+	/**
+	 * Fills the hashed containers, each one only after all hashed containers reachable from its elements,
+	 * so the hash codes of the elements do not change after they have been added.
+	 * <br/>The clone graph below the elements is walked depth first (without recursion) and every container is filled in post-order.
+	 * Every object is visited once, containers on a cycle are filled in the order they are first reached.
+	 */
+	void fillDeferred(){
+		if(deferred.isEmpty()){
+			return;
+		}
+		ExactEqualityMap<Object, ContainerFill> fills = new ExactEqualityMap<Object, ContainerFill>(deferred.size());
+		for(ContainerFill fill : deferred){
+			fills.put(fill.clone, fill);
+		}
+		ExactEqualityMap<Object, Boolean> visited = new ExactEqualityMap<Object, Boolean>();
+		// the objects on the current path and the index of their next child to visit, always pushed and popped together
+		ArrayDeque<Object> path = new ArrayDeque<Object>();
+		ArrayDeque<int[]> positions = new ArrayDeque<int[]>();
+		ArrayDeque<Object[]> children = new ArrayDeque<Object[]>();
+		for(ContainerFill start : deferred){
+			if(visited.put(start.clone, Boolean.TRUE) != null){
+				continue;
+			}
+			path.push(start.clone);
+			children.push(start.elements);
+			positions.push(new int[1]);
+			while(!path.isEmpty()){
+				Object[] next = children.peek();
+				int[] position = positions.peek();
+				if(position[0] < next.length){
+					Object child = next[position[0]++];
+					if(child != null && !Cloner.isImmutable(child.getClass()) && visited.put(child, Boolean.TRUE) == null){
+						path.push(child);
+						children.push(childrenOf(child, fills));
+						positions.push(new int[1]);
+					}
+				}else{
+					Object done = path.pop();
+					children.pop();
+					positions.pop();
+					ContainerFill fill = fills.get(done);
+					if(fill != null){
+						fill.fill();
+					}
+				}
+			}
+		}
+		deferred.clear();
+	}
+
+	/**
+	 * @param clone an object of the clone graph
+	 * @param fills the hashed containers that have not been filled yet, by clone
+	 * @return the objects directly referenced by the given clone
+	 */
+	private static Object[] childrenOf(Object clone, ExactEqualityMap<Object, ContainerFill> fills){
+		ContainerFill fill = fills.get(clone);
+		if(fill != null){
+			return fill.elements;
+		}
+		try{
+			ClonePlan plan = ClonePlan.of(clone.getClass());
+			if(plan.getContainerCloner() != null){
+				return plan.getContainerCloner().elements(clone);
+			}else if(plan.isFlatArray()){
+				return new Object[0];
+			}else if(plan.isArray()){
+				return (Object[]) clone;
+			}
+			Object[] references = new Object[plan.getReferenceCount()];
+			for(int i = 0; i < references.length; i++){
+				references[i] = plan.getReference(clone, i);
+			}
+			return references;
+		}catch(Throwable e){
+			throw new CloneException(clone, e);
+		}
+	}
+
+	/**
+	 * Fills all shells that are still pending.
+	 */
+	void drain(){
+		while(!pending.isEmpty()){
+			Object clone = pending.pop();
+			Object original = pending.pop();
+			fill(original, clone);
+		}
+	}
+
+	/**
+	 * Returns the clone for the given object, creating an empty shell that will be filled later if it has not been visited yet.
+	 * @param object the original object
+	 * @return the (possibly not yet filled) clone of the object, or the object itself if it does not have to be cloned
+	 */
+	Object resolve(Object object){
+		if(object == null){
+			return null;
+		}
+		Class<?> type = object.getClass();
+		if(Cloner.isImmutable(type)){
+			return object;
+		}
+		Object clone = lookup(object);
+		if(clone != null){
+			return clone;
+		}
+
+		boolean flat;
+		try{
+			ClonePlan plan = ClonePlan.of(type);
+			flat = plan.isFlatArray();
+			if(plan.getContainerCloner() != null){
+				clone = plan.getContainerCloner().newInstance(object);
+			}else{
+				clone = plan.isArray() ? plan.copyArray(object) : plan.newInstance();
+			}
+		}catch(Throwable e){
+			throw new CloneException(object, e);
+		}
+		Object registered = register(object, clone);
+		if(registered != clone || flat){
+			return registered;
+		}
+		pending.push(object);
+		pending.push(clone);
+		return clone;
+	}
+
+	/**
+	 * Replaces the elements of the given array with their clones.
+	 * @param array the clone of an array, still containing the original elements
+	 * @param from the first index to replace (inclusive)
+	 * @param to the last index to replace (exclusive)
+	 */
+	protected void fillArray(Object[] array, int from, int to){
+		for(int i = from; i < to; i++){
+			array[i] = resolve(array[i]);
+		}
+	}
+
+	/**
+	 * Adds the cloned elements to the clone of a container, or defers it if the container is hashed.
+	 * @param fill the container and its cloned elements
+	 */
+	protected void fillContainer(ContainerFill fill){
+		if(fill.isHashed()){
+			deferred.add(fill);
+		}else{
+			fill.fill();
+		}
+	}
+
+	protected void fill(Object original, Object clone){
+		try{
+			ClonePlan plan = ClonePlan.of(original.getClass());
+			ContainerCloner<Object> containerCloner = plan.getContainerCloner();
+			if(containerCloner != null){
+				Object[] elements = containerCloner.elements(original);
+				fillArray(elements, 0, elements.length);
+				fillContainer(new ContainerFill(containerCloner, clone, elements));
+			}else if(plan.isArray()){
+				// the clone already contains the original elements, replace them with their clones
+				Object[] array = (Object[]) clone;
+				fillArray(array, 0, array.length);
+			}else{
+				plan.copyPrimitives(original, clone);
+				for(int i = 0; i < plan.getReferenceCount(); i++){
+					plan.setReference(clone, i, resolve(plan.getReference(original, i)));
+				}
+			}
+		}catch(CloneException cloneException){
+			throw cloneException;
+		}catch(Throwable e){
+			throw new CloneException(original, e);
+		}
+	}
+
+	/**
+	 * A container clone together with its cloned elements, waiting to be filled.
+	 */
+	static class ContainerFill {
+
+		private final ContainerCloner<Object> cloner;
+		private final Object clone;
+		private final Object[] elements;
+
+		private ContainerFill(ContainerCloner<Object> cloner, Object clone, Object[] elements){
+			this.cloner = cloner;
+			this.clone = clone;
+			this.elements = elements;
+		}
+
+		boolean isHashed(){
+			return cloner.isHashed();
+		}
+
+		int size(){
+			return elements.length;
+		}
+
+		void fill(){
+			try{
+				cloner.fill(clone, elements);
+			}catch(RuntimeException e){
+				throw new CloneException(clone, e);
+			}
+		}
+	}
+
+}
@@ -1,69 +1,211 @@
 package com.creditsuisse.util;
 
-import java.lang.reflect.Array;
-import java.lang.reflect.Field;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.io.File;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.List;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.MonthDay;
+import java.time.OffsetDateTime;
+import java.time.OffsetTime;
+import java.time.Period;
+import java.time.Year;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
 
 import org.objenesis.ObjenesisStd;
 
 public class Cloner {
 	
-	private static ObjenesisStd OBJENESIS = new ObjenesisStd();
+	static final ObjenesisStd OBJENESIS = new ObjenesisStd();
 	
-	public static <T> T clone(T object, boolean deep){
-		return clone(object, deep, new ExactEqualityMap<Object, Object>());
+	// types whose instances are shared instead of cloned, see isImmutable(Class)
+	private static final Set<Class<?>> IMMUTABLE_TYPES = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+	
+	static{
+		for(Class<?> type : new Class<?>[]{
+				Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class, Void.class,
+				String.class, Class.class, BigDecimal.class, BigInteger.class, UUID.class, Locale.class, Currency.class,
+				URI.class, URL.class, File.class, Pattern.class, InetAddress.class, Inet4Address.class, Inet6Address.class,
+				Instant.class, Duration.class, Period.class, LocalDate.class, LocalTime.class, LocalDateTime.class,
+				ZonedDateTime.class, OffsetDateTime.class, OffsetTime.class, Year.class, YearMonth.class, MonthDay.class, ZoneOffset.class,
+				Color.class, Font.class, BasicStroke.class}){
+			IMMUTABLE_TYPES.add(type);
+		}
 	}
-
+	
+	private static final Map<Class<?>, ContainerCloner<Object>> CONTAINER_CLONERS = new ConcurrentHashMap<Class<?>, ContainerCloner<Object>>();
+	
+	static{
+		ContainerCloners.registerDefaults();
+	}
+	
+	private static final ClassValue<Boolean> IMMUTABLE = new ClassValue<Boolean>() {
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+			return type.isPrimitive() || IMMUTABLE_TYPES.contains(type) || type.isAnnotationPresent(Immutable.class) || isImmutableHierarchy(type);
+		}
+	};
+	
+	/**
+	 * @param type the class to check
+	 * @return true if the class belongs to a hierarchy of which every subclass is immutable (enums, zone ids and charsets)
+	 */
+	static boolean isImmutableHierarchy(Class<?> type){
+		// enum constants with a body are subclasses of their enum, zone regions and most charsets are not public
+		return Enum.class.isAssignableFrom(type) || ZoneId.class.isAssignableFrom(type) || Charset.class.isAssignableFrom(type);
+	}
+	
+	/**
+	 * Registers a cloner for the given container type.
+	 * <br/>Instances of exactly this class (not subclasses) will be cloned through the given cloner instead of field by field.
+	 * Cloners for the common JDK collections and maps are registered by default.
+	 * @param type the container class
+	 * @param cloner the cloner for instances of this class
+	 */
 	@SuppressWarnings("unchecked")
-	private static <T> T clone(T object, boolean deep, ExactEqualityMap<Object, Object> cloneCache){
+	public static <T> void registerContainerCloner(Class<? super T> type, ContainerCloner<T> cloner){
+		CONTAINER_CLONERS.put(type, (ContainerCloner<Object>) cloner);
+		ClonePlan.invalidate(type);
+		BinaryCodec.invalidate(type);
+	}
+	
+	/**
+	 * @param type the class to get the cloner for
+	 * @return the container cloner registered for exactly the given class or null if there is none
+	 */
+	static ContainerCloner<Object> getContainerCloner(Class<?> type){
+		return CONTAINER_CLONERS.get(type);
+	}
+	
+	/**
+	 * Registers a type whose instances should be shared instead of cloned.
+	 * <br/>Only the given class is registered, not its subclasses.
+	 * Classes under your control may also be marked with the {@link Immutable} annotation instead.
+	 * @param type the immutable type
+	 */
+	public static void registerImmutable(Class<?> type){
+		IMMUTABLE_TYPES.add(type);
+		IMMUTABLE.remove(type);
+	}
+	
+	/**
+	 * Checks if instances of the given class can be shared instead of cloned.
+	 * <br/>This is true for primitives and their wrappers, enums, strings, classes, common immutable JDK types (java.time, BigDecimal, UUID, Color, Font, ...),
+	 * classes annotated with {@link Immutable} and types added by {@link #registerImmutable(Class)}.
+	 * @param type the class to check
+	 * @return true if instances of the given class are never cloned
+	 */
+	public static boolean isImmutable(Class<?> type){
+		return IMMUTABLE.get(type);
+	}
+	
+	/**
+	 * Clones the given object.
+	 * <br/>A deep clone copies the whole graph reachable from the object, preserving shared references and cycles.
+	 * It does not use recursion, so graphs of any depth can be cloned.
+	 * <br/>A shallow clone only copies the object itself, its fields will reference the same objects as the original.
+	 * Arrays are always cloned deep.
+	 * @param object the object to clone
+	 * @param deep true for a deep clone, false for a shallow one
+	 * @return the clone
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T clone(T object, boolean deep){
 		if(object == null){
 			return null;
+		}else if(isImmutable(object.getClass())){
+			return object;
+		}
+		
+		if(deep || object.getClass().isArray()){
+			return (T) new CloneTraversal().run(object);
 		}else{
-			T clone = (T) cloneCache.get(object);
-			if(clone != null){
-				return clone;
-			}else if(object.getClass().isPrimitive() || ReflectionUtil.isPrimitiveWrapper(object.getClass()) || object.getClass() == String.class || object.getClass() == Class.class){
-				return object;
-			}else{
-				try {
-					if(object.getClass().isArray()) {
-				        int length = Array.getLength(object);
-				        clone = (T) Array.newInstance(object.getClass().getComponentType(), length);
-				        cloneCache.put(object, clone);
-				        for (int i = 0; i < length; i++) {
-				            Array.set(clone, i, clone(Array.get(object, i), true, cloneCache));
-				        }
-				        return clone;
-				    }else{
-						clone = (T) OBJENESIS.newInstance(object.getClass());
-				        cloneCache.put(object, clone);
-						List<Field> fields = ReflectionUtil.getAllFieldsInHierarchy(object.getClass());
-						for(Field field : fields){
-							boolean isAccessible = field.isAccessible();
-							boolean isFinal = ReflectionUtil.isFinal(field);
-							field.setAccessible(true);
-							ReflectionUtil.setFinal(field, false);
-							if(deep){
-								field.set(clone, clone(field.get(object), true, cloneCache));
-							}else{
-								field.set(clone, field.get(object));
-							}
-							field.setAccessible(isAccessible);
-							ReflectionUtil.setFinal(field, isFinal);
-						}
-						return clone;
-				    }
-				} catch(CloneException cloneException) {
-					throw cloneException;
-				} catch (Throwable e) {
-					throw new CloneException(object, e);
+			try {
+				ClonePlan plan = ClonePlan.of(object.getClass());
+				ContainerCloner<Object> containerCloner = plan.getContainerCloner();
+				if(containerCloner != null){
+					T clone = (T) containerCloner.newInstance(object);
+					containerCloner.fill(clone, containerCloner.elements(object));
+					return clone;
+				}
+				T clone = (T) plan.newInstance();
+				plan.copyPrimitives(object, clone);
+				for(int i = 0; i < plan.getReferenceCount(); i++){
+					plan.setReference(clone, i, plan.getReference(object, i));
 				}
+				return clone;
+			} catch (Throwable e) {
+				throw new CloneException(object, e);
 			}
 		}
 	}
 	
+	/**
+	 * Deep clones the given object using all cores of the common {@link ForkJoinPool}.
+	 * @param object the object to clone
+	 * @return the clone
+	 * @see #cloneParallel(Object, ForkJoinPool)
+	 */
+	public static <T> T cloneParallel(T object){
+		return cloneParallel(object, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Deep clones the given object using the given pool.
+	 * <br/>Large arrays and collections are split into chunks that are cloned concurrently.
+	 * The result is the same as from a sequential deep clone, shared references and cycles are preserved.
+	 * <br/>This only pays off for big graphs, small objects are faster cloned by {@link #clone(Object, boolean)}.
+	 * The graph must not be modified while it is being cloned.
+	 * @param object the object to clone
+	 * @param pool the pool to clone in
+	 * @return the clone
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T cloneParallel(T object, ForkJoinPool pool){
+		if(object == null){
+			return null;
+		}else if(isImmutable(object.getClass())){
+			return object;
+		}
+		return (T) new ParallelCloneTraversal().run(object, pool);
+	}
+	
+	/**
+	 * Creates a prototype of the given template, which can produce deep copies of it much faster than {@link #clone(Object, boolean)}.
+	 * <br/>Use this if many copies of the same template are needed.
+	 * @param template the object graph to copy
+	 * @return a prototype based on a snapshot of the template
+	 */
+	public static <T> Prototype<T> prototype(T template){
+		return new Prototype<T>(template);
+	}
+	
 	public static void main(String[] args) throws NoSuchMethodException, SecurityException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
 		Method m = Cloner.class.getMethod("clone", Object.class, boolean.class);
 		GetterSetterAccess access = new GetterSetterAccess(Method.class);
@@ -1,22 +1,117 @@
 package com.creditsuisse.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * Easy to access {@link Properties} that automatically loads and stores.
+ * <br/>By default every {@link #setProperty(String, String)} stores the file immediately.
+ * Multiple changes can be combined into a single store with {@link #edit(Runnable)} (or {@link #beginEdit()} and {@link #commitEdit()}),
+ * and {@link #setSaveDelay(long)} moves the stores to a background thread that writes all changes made within the delay at once.
+ * <br/>The file is written to a temporary file first and then renamed, so it is never left half written.
+ * <br/>{@link #getProperty(String)} and the typed getters ({@link #getInt(String, int)} etc.) do not lock, they read an immutable snapshot
+ * of all properties that is replaced whenever changes are committed (after every change, or once at the end of an edit),
+ * so they never see a half applied edit. Parsed values are cached per snapshot.
+ * <br/>With {@link #setHotReload(boolean)} changes made to the file by others are applied automatically and reported to the {@link ChangeListener}s.
  * @author A469627
  *
  */
 public class Config extends Properties{
 	private static final long serialVersionUID = 1L;
+
+	// the types of the parsed value caches
+	private static final int INT = 0;
+	private static final int LONG = 1;
+	private static final int DOUBLE = 2;
+	private static final int BOOLEAN = 3;
+	private static final int DURATION = 4;
+
+	// cached for missing and invalid values
+	private static final Object NO_VALUE = new Object();
+
+	private static final ScheduledExecutorService SAVER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Config Saver");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	// configs with a scheduled save, saved on shutdown as the saver thread does not keep the JVM alive
+	// (by identity, as properties are equal if their content is)
+	private static final Set<Config> PENDING_CONFIGS = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Config, Boolean>()));
+
+	static{
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			public void run(){
+				Config[] configs;
+				synchronized (PENDING_CONFIGS) {
+					configs = PENDING_CONFIGS.toArray(new Config[PENDING_CONFIGS.size()]);
+				}
+				for(Config config : configs){
+					try{
+						config.save();
+					}catch(RuntimeException e){
+						e.printStackTrace();
+					}
+				}
+			}
+		});
+	}
 	
 	protected File configFile;
 
+	// the following fields are guarded by this (like the properties themselves)
+	private int editDepth = 0;
+	// incremented with every change, to find out whether the file is up to date
+	private long version = 0;
+	private long saveDelay = -1;
+	private boolean saveScheduled = false;
+
+	// the properties as of the last commit, null if they changed since and have not been read yet (never null during an edit, see beginEdit)
+	private transient volatile Snapshot snapshot;
+
+	// guards the file; the lock order is saveLock before this, so the file is never read or written while holding this
+	// (changes are stored after the monitor has been released, or by the saver thread if the caller still holds it)
+	private final transient Object saveLock = new Object();
+	private long savedVersion = 0;
+	// the properties as they are in the file, to find out what others changed
+	private transient Map<String, String> fileContent;
+	// watches the file while hot reload is enabled
+	private transient ChangeListener fileListener;
+
+	private final transient List<ChangeListener> changeListeners = new CopyOnWriteArrayList<ChangeListener>();
+
 	/**
 	 * Loads the configuration file.
 	 * @param configFile the file where the configuration is stored
@@ -30,17 +125,32 @@ public class Config extends Properties{
 				throw new RuntimeException(e);
 			}
 		}
+		// loading is not a change that has to be stored
+		editDepth++;
 		try {
 			FileInputStream input = new FileInputStream(configFile);
 			load(input);
 			input.close();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			endEdit();
+		}
+		savedVersion = version;
+		fileContent = currentValues();
+	}
+	
+	private static Map<String, String> toMap(Properties properties){
+		Map<String, String> map = new HashMap<String, String>();
+		for(String name : properties.stringPropertyNames()){
+			map.put(name, properties.getProperty(name));
 		}
+		return map;
 	}
 
 	/**
-	 * Calls <code>super.setProperty(key, value)</code> and also stores the properties to the file passed in the constructor.
+	 * Calls <code>put(key, value)</code>, which also stores the properties to the file passed in the constructor
+	 * (unless an edit is in progress, see {@link #beginEdit()}, or the save is delayed, see {@link #setSaveDelay(long)}).
 	 * <br/><br/>
 	 * <b>Super Implementation JavaDoc:</b><br/>
      * Calls the <tt>Hashtable</tt> method {@code put}. Provided for
@@ -55,17 +165,843 @@ public class Config extends Properties{
      * @see #getProperty
      * @since    1.2
      */
-	public synchronized Object setProperty(String key, String value) {
-		Object returnValue =  super.setProperty(key, value);
-		try {
-			store(new FileOutputStream(configFile), "");
-		} catch (FileNotFoundException e) {
-			throw new RuntimeException(e);
-		} catch (IOException e) {
+	public Object setProperty(String key, String value) {
+		// not super.setProperty, it is synchronized and the file must not be stored while holding the lock
+		return put(key, value);
+	}
+	
+	/**
+	 * Like {@link #setProperty(String, String)}, stores the file unless an edit is in progress or the save is delayed.
+	 */
+	@Override
+	public Object put(Object key, Object value) {
+		try{
+			synchronized (this) {
+				beginChange();
+				return super.put(key, value);
+			}
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	/**
+	 * Loads the properties as a single edit, the file is stored once unless an edit is in progress or the save is delayed.
+	 */
+	@Override
+	public void load(Reader reader) throws IOException {
+		// super.load is synchronized, the edit makes sure the changes are stored after it released the lock
+		beginEdit();
+		try{
+			super.load(reader);
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	/**
+	 * Loads the properties as a single edit, the file is stored once unless an edit is in progress or the save is delayed.
+	 */
+	@Override
+	public void load(InputStream input) throws IOException {
+		beginEdit();
+		try{
+			super.load(input);
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	/**
+	 * Loads the properties as a single edit, the file is stored once unless an edit is in progress or the save is delayed.
+	 */
+	@Override
+	public void loadFromXML(InputStream input) throws IOException {
+		beginEdit();
+		try{
+			super.loadFromXML(input);
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	/**
+	 * Stores the file once for all given properties, unless an edit is in progress or the save is delayed.
+	 */
+	@Override
+	public void putAll(Map<?, ?> properties) {
+		try{
+			synchronized (this) {
+				beginChange();
+				super.putAll(properties);
+			}
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	/**
+	 * Stores the file unless an edit is in progress or the save is delayed.
+	 */
+	@Override
+	public Object remove(Object key) {
+		try{
+			synchronized (this) {
+				beginChange();
+				return super.remove(key);
+			}
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	/**
+	 * Stores the file unless an edit is in progress or the save is delayed.
+	 */
+	@Override
+	public void clear() {
+		try{
+			synchronized (this) {
+				beginChange();
+				super.clear();
+			}
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	@Override
+	public boolean remove(Object key, Object value) {
+		try{
+			synchronized (this) {
+				beginChange();
+				return super.remove(key, value);
+			}
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	@Override
+	public Object putIfAbsent(Object key, Object value) {
+		try{
+			synchronized (this) {
+				beginChange();
+				return super.putIfAbsent(key, value);
+			}
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	@Override
+	public Object replace(Object key, Object value) {
+		try{
+			synchronized (this) {
+				beginChange();
+				return super.replace(key, value);
+			}
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	@Override
+	public boolean replace(Object key, Object oldValue, Object newValue) {
+		try{
+			synchronized (this) {
+				beginChange();
+				return super.replace(key, oldValue, newValue);
+			}
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	@Override
+	public void replaceAll(BiFunction<? super Object, ? super Object, ?> function) {
+		try{
+			synchronized (this) {
+				beginChange();
+				super.replaceAll(function);
+			}
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	@Override
+	public Object computeIfAbsent(Object key, Function<? super Object, ?> mappingFunction) {
+		try{
+			synchronized (this) {
+				beginChange();
+				return super.computeIfAbsent(key, mappingFunction);
+			}
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	@Override
+	public Object computeIfPresent(Object key, BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+		try{
+			synchronized (this) {
+				beginChange();
+				return super.computeIfPresent(key, remappingFunction);
+			}
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	@Override
+	public Object compute(Object key, BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+		try{
+			synchronized (this) {
+				beginChange();
+				return super.compute(key, remappingFunction);
+			}
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	@Override
+	public Object merge(Object key, Object value, BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+		try{
+			synchronized (this) {
+				beginChange();
+				return super.merge(key, value, remappingFunction);
+			}
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	/**
+	 * Changes made through the returned view (or its iterator) are stored like the ones made through {@link #remove(Object)}.
+	 */
+	@Override
+	public Set<Object> keySet() {
+		return new StoringSet<Object>(super.keySet());
+	}
+	
+	/**
+	 * Changes made through the returned view (its iterator or its entries) are stored like the ones made through {@link #put(Object, Object)}.
+	 */
+	@Override
+	public Set<Map.Entry<Object, Object>> entrySet() {
+		return new StoringSet<Map.Entry<Object, Object>>(super.entrySet()){
+			@Override
+			Map.Entry<Object, Object> wrap(Map.Entry<Object, Object> entry) {
+				return new StoringEntry(entry);
+			}
+		};
+	}
+	
+	/**
+	 * Changes made through the returned view (or its iterator) are stored like the ones made through {@link #remove(Object)}.
+	 */
+	@Override
+	public Collection<Object> values() {
+		return new StoringCollection<Object>(super.values());
+	}
+	
+	/**
+	 * Starts a change as a single edit, every method that modifies the properties calls this and then {@link #commitEdit()},
+	 * which invalidates the snapshot and stores the file (outside of the lock, so readers are not blocked by the file system).
+	 * <br/>The caller must hold the lock until the change is complete, so a snapshot created in between never contains half of it.
+	 */
+	private void beginChange(){
+		editDepth++;
+		version++;
+	}
+	
+	/**
+	 * Searches for the property with the specified key, without locking.
+	 * <br/>Changes of an edit in progress are not visible until the edit is committed, {@link #get(Object)} returns them immediately.
+	 * @param key the property key
+	 * @return the value or null if there is no such property
+	 */
+	@Override
+	public String getProperty(String key) {
+		return snapshot().values.get(key);
+	}
+	
+	/**
+	 * @return the value of the given property as int, or the default value if it is missing or not a valid int
+	 */
+	public int getInt(String key, int defaultValue){
+		Object value = getParsed(key, INT);
+		return value == NO_VALUE ? defaultValue : (Integer) value;
+	}
+	
+	/**
+	 * @return the value of the given property as long, or the default value if it is missing or not a valid long
+	 */
+	public long getLong(String key, long defaultValue){
+		Object value = getParsed(key, LONG);
+		return value == NO_VALUE ? defaultValue : (Long) value;
+	}
+	
+	/**
+	 * @return the value of the given property as double, or the default value if it is missing or not a valid double
+	 */
+	public double getDouble(String key, double defaultValue){
+		Object value = getParsed(key, DOUBLE);
+		return value == NO_VALUE ? defaultValue : (Double) value;
+	}
+	
+	/**
+	 * Accepts true, yes, on, 1 and false, no, off, 0 (ignoring case).
+	 * @return the value of the given property as boolean, or the default value if it is missing or not a valid boolean
+	 */
+	public boolean getBoolean(String key, boolean defaultValue){
+		Object value = getParsed(key, BOOLEAN);
+		return value == NO_VALUE ? defaultValue : (Boolean) value;
+	}
+	
+	/**
+	 * Accepts a number with an optional unit (ms, s, m, h or d, milliseconds if omitted), like <code>500ms</code> or <code>10 s</code>,
+	 * or an ISO-8601 duration like <code>PT10S</code>.
+	 * @return the value of the given property as duration, or the default value if it is missing or not a valid duration
+	 */
+	public Duration getDuration(String key, Duration defaultValue){
+		Object value = getParsed(key, DURATION);
+		return value == NO_VALUE ? defaultValue : (Duration) value;
+	}
+	
+	/**
+	 * @return the current snapshot, created if needed
+	 */
+	private Snapshot snapshot(){
+		Snapshot snapshot = this.snapshot;
+		if(snapshot != null) return snapshot;
+		synchronized (this) {
+			// only null outside of edits (and changes, which hold the lock), so the properties are all committed
+			if(this.snapshot == null){
+				this.snapshot = createSnapshot();
+			}
+			return this.snapshot;
+		}
+	}
+	
+	/**
+	 * @return a snapshot of the current properties, the caller must hold the lock
+	 */
+	private Snapshot createSnapshot(){
+		return new Snapshot(currentValues(), version);
+	}
+	
+	/**
+	 * @return a copy of the current properties including uncommitted changes (unlike {@link #getProperty(String)}), the caller must hold the lock
+	 */
+	private Map<String, String> currentValues(){
+		Map<String, String> values = new HashMap<String, String>();
+		for(String name : stringPropertyNames()){
+			values.put(name, super.getProperty(name));
+		}
+		return values;
+	}
+	
+	private Object getParsed(String key, int type){
+		Snapshot snapshot = snapshot();
+		Map<String, Object> cache = snapshot.parsed[type];
+		Object value = cache.get(key);
+		if(value == null){
+			value = parse(snapshot.values.get(key), type);
+			cache.put(key, value);
+		}
+		return value;
+	}
+	
+	private static Object parse(String value, int type){
+		if(value == null) return NO_VALUE;
+		value = value.trim();
+		try{
+			switch(type){
+			case INT: return Integer.valueOf(value);
+			case LONG: return Long.valueOf(value);
+			case DOUBLE: return Double.valueOf(value);
+			case BOOLEAN:
+				if(value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes") || value.equalsIgnoreCase("on") || value.equals("1")) return Boolean.TRUE;
+				if(value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equalsIgnoreCase("off") || value.equals("0")) return Boolean.FALSE;
+				return NO_VALUE;
+			default: return parseDuration(value);
+			}
+		}catch(NumberFormatException | DateTimeParseException | ArithmeticException e){
+			return NO_VALUE;
+		}
+	}
+	
+	private static Object parseDuration(String value){
+		if(value.startsWith("P") || value.startsWith("p")){
+			return Duration.parse(value);
+		}
+		int unitStart = value.length();
+		while(unitStart > 0 && !Character.isDigit(value.charAt(unitStart - 1))){
+			unitStart--;
+		}
+		long amount = Long.parseLong(value.substring(0, unitStart).trim());
+		String unit = value.substring(unitStart).trim().toLowerCase();
+		switch(unit){
+		case "":
+		case "ms": return Duration.ofMillis(amount);
+		case "s": return Duration.ofSeconds(amount);
+		case "m": return Duration.ofMinutes(amount);
+		case "h": return Duration.ofHours(amount);
+		case "d": return Duration.ofDays(amount);
+		default: return NO_VALUE;
+		}
+	}
+	
+	/**
+	 * Starts a batch of changes, the file is not stored until the matching {@link #commitEdit()}.
+	 * <br/>Batches may be nested, only the outermost commit stores the file.
+	 */
+	public synchronized void beginEdit(){
+		editDepth++;
+		// readers keep using the committed properties until the edit is committed
+		if(snapshot == null){
+			snapshot = createSnapshot();
+		}
+	}
+	
+	/**
+	 * Ends a batch of changes started with {@link #beginEdit()} and stores the file if this was the outermost batch and anything changed.
+	 */
+	public void commitEdit(){
+		boolean persist;
+		synchronized (this) {
+			if(editDepth == 0) throw new IllegalStateException("No edit in progress.");
+			persist = endEdit();
+		}
+		if(persist) persist();
+	}
+	
+	/**
+	 * Ends a batch of changes, publishes the changes to the readers if this was the outermost batch, the caller must hold the lock.
+	 * @return true if this was the outermost batch
+	 */
+	private boolean endEdit(){
+		editDepth--;
+		if(editDepth > 0) return false;
+		Snapshot snapshot = this.snapshot;
+		if(snapshot != null && snapshot.version != version){
+			// created again by the next reader
+			this.snapshot = null;
+		}
+		return true;
+	}
+	
+	/**
+	 * Runs the given changes as a single batch, the file is stored once at the end (even if the changes fail).
+	 * @param changes the code making the changes, usually a series of {@link #setProperty(String, String)} calls
+	 */
+	public void edit(Runnable changes){
+		beginEdit();
+		try{
+			changes.run();
+		}finally{
+			commitEdit();
+		}
+	}
+	
+	/**
+	 * Defines when changes are stored.
+	 * <br/>With a delay, the file is stored by a background thread once the delay after the first unsaved change has passed,
+	 * which combines all changes made in that time into a single write. Pending changes are also saved on shutdown.
+	 * @param saveDelay the delay in milliseconds, or a negative value to store on the calling thread immediately (the default)
+	 */
+	public void setSaveDelay(long saveDelay){
+		synchronized (this) {
+			this.saveDelay = saveDelay;
+		}
+		if(saveDelay < 0) save();
+	}
+	
+	public synchronized long getSaveDelay(){
+		return saveDelay;
+	}
+	
+	private void persist(){
+		// a caller that still holds the lock (e.g. code synchronizing on the config) must not wait for saveLock
+		boolean locked = Thread.holdsLock(this);
+		long delay;
+		synchronized (this) {
+			delay = saveDelay;
+			if(delay < 0 && locked) delay = 0;
+			if(delay >= 0){
+				if(saveScheduled) return;
+				saveScheduled = true;
+			}
+		}
+		if(delay < 0){
+			save();
+			return;
+		}
+		PENDING_CONFIGS.add(this);
+		SAVER.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (Config.this) {
+					// changes made from now on need another save
+					saveScheduled = false;
+				}
+				try{
+					save();
+				}catch(RuntimeException e){
+					e.printStackTrace();
+				}finally{
+					synchronized (Config.this) {
+						if(!saveScheduled) PENDING_CONFIGS.remove(Config.this);
+					}
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stores all changes to the file now, does nothing if the file is up to date.
+	 * @throws IllegalStateException if the calling thread holds the lock of this config
+	 */
+	public void save(){
+		checkLockOrder();
+		synchronized (saveLock) {
+			long version;
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			Map<String, String> contentMap;
+			synchronized (this) {
+				version = this.version;
+				if(version == savedVersion) return;
+				try{
+					store(content, "");
+				}catch(IOException e){
+					throw new RuntimeException(e);
+				}
+				contentMap = currentValues();
+			}
+			write(content);
+			savedVersion = version;
+			fileContent = contentMap;
+		}
+	}
+	
+	/**
+	 * Enables or disables hot reload.
+	 * <br/>While enabled the file is watched (see {@link FileWatcher}) and changes made to it by others are applied to this config
+	 * as soon as they are written, only the properties that changed in the file are updated.
+	 * Unsaved changes made to other properties are kept.
+	 * @param hotReload true to watch the file
+	 */
+	public void setHotReload(boolean hotReload){
+		checkLockOrder();
+		synchronized (saveLock) {
+			if(hotReload == (fileListener != null)) return;
+			if(hotReload){
+				fileListener = new ChangeListener() {
+					@Override
+					public void onChange() {
+						reload();
+					}
+				};
+				FileWatcher.watch(configFile, fileListener);
+				// the file may have changed before it was watched
+				reload();
+			}else{
+				FileWatcher.unwatch(configFile, fileListener);
+				fileListener = null;
+			}
+		}
+	}
+	
+	public boolean isHotReload(){
+		synchronized (saveLock) {
+			return fileListener != null;
+		}
+	}
+	
+	/**
+	 * Adds a listener that is notified whenever a reload changed any property (see {@link #reload()} and {@link #setHotReload(boolean)}).
+	 * @param listener the listener to add
+	 */
+	public void addChangeListener(ChangeListener listener){
+		changeListeners.add(listener);
+	}
+	
+	public void removeChangeListener(ChangeListener listener){
+		changeListeners.remove(listener);
+	}
+	
+	/**
+	 * Applies the changes made to the file since it was last loaded or saved, and notifies the change listeners if there were any.
+	 * <br/>Properties that did not change in the file keep their current (possibly unsaved) values.
+	 */
+	public void reload(){
+		checkLockOrder();
+		boolean changed = false;
+		synchronized (saveLock) {
+			Properties loaded = new Properties();
+			if(configFile.exists()){
+				try(FileInputStream input = new FileInputStream(configFile)){
+					loaded.load(input);
+				}catch(IOException e){
+					throw new RuntimeException(e);
+				}
+			}
+			Map<String, String> newContent = toMap(loaded);
+			synchronized (this) {
+				// the changes come from the file, they only have to be stored if there are unsaved changes anyway
+				boolean upToDate = version == savedVersion;
+				editDepth++;
+				try{
+					for(Map.Entry<String, String> entry : newContent.entrySet()){
+						if(!entry.getValue().equals(fileContent.get(entry.getKey()))){
+							put(entry.getKey(), entry.getValue());
+							changed = true;
+						}
+					}
+					for(String key : fileContent.keySet()){
+						if(!newContent.containsKey(key)){
+							remove(key);
+							changed = true;
+						}
+					}
+				}finally{
+					endEdit();
+				}
+				if(upToDate) savedVersion = version;
+			}
+			fileContent = newContent;
+		}
+		if(changed){
+			for(ChangeListener listener : changeListeners){
+				listener.onChange();
+			}
+		}
+	}
+	
+	/**
+	 * The file is only accessed while holding saveLock, which must be acquired before this.
+	 */
+	private void checkLockOrder(){
+		if(Thread.holdsLock(this)) throw new IllegalStateException("The file of a config must not be accessed while holding the lock of the config: " + configFile);
+	}
+	
+	private void write(ByteArrayOutputStream content){
+		File temp = null;
+		try{
+			temp = FileUtil.createTempFileFor(configFile);
+			try(FileOutputStream out = new FileOutputStream(temp)){
+				content.writeTo(out);
+				out.getFD().sync();
+			}
+			try{
+				Files.move(temp.toPath(), configFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}catch(AtomicMoveNotSupportedException e){
+				Files.move(temp.toPath(), configFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			temp = null;
+		}catch(IOException e){
 			throw new RuntimeException(e);
+		}finally{
+			if(temp != null && !temp.delete()){
+				temp.deleteOnExit();
+			}
 		}
-		return returnValue;
 	}
 	
+	/**
+	 * A view of the properties whose changes are made as single edits (see {@link Config#beginChange()}).
+	 */
+	private class StoringCollection<E> extends AbstractCollection<E> {
+		
+		final Collection<E> view;
+		
+		StoringCollection(Collection<E> view){
+			this.view = view;
+		}
+		
+		E wrap(E element){
+			return element;
+		}
+		
+		@Override
+		public Iterator<E> iterator() {
+			final Iterator<E> iterator = view.iterator();
+			return new Iterator<E>() {
+				@Override
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+				
+				@Override
+				public E next() {
+					return wrap(iterator.next());
+				}
+				
+				@Override
+				public void remove() {
+					try{
+						synchronized (Config.this) {
+							beginChange();
+							iterator.remove();
+						}
+					}finally{
+						commitEdit();
+					}
+				}
+			};
+		}
+		
+		@Override
+		public int size() {
+			return view.size();
+		}
+		
+		@Override
+		public boolean contains(Object o) {
+			return view.contains(o);
+		}
+		
+		@Override
+		public boolean remove(Object o) {
+			try{
+				synchronized (Config.this) {
+					beginChange();
+					return view.remove(o);
+				}
+			}finally{
+				commitEdit();
+			}
+		}
+		
+		// the bulk removals are a single change, not one per element
+		
+		@Override
+		public boolean removeAll(Collection<?> c) {
+			try{
+				synchronized (Config.this) {
+					beginChange();
+					return view.removeAll(c);
+				}
+			}finally{
+				commitEdit();
+			}
+		}
+		
+		@Override
+		public boolean retainAll(Collection<?> c) {
+			try{
+				synchronized (Config.this) {
+					beginChange();
+					return view.retainAll(c);
+				}
+			}finally{
+				commitEdit();
+			}
+		}
+		
+		@Override
+		public boolean removeIf(Predicate<? super E> filter) {
+			try{
+				synchronized (Config.this) {
+					beginChange();
+					return view.removeIf(filter);
+				}
+			}finally{
+				commitEdit();
+			}
+		}
+		
+		@Override
+		public void clear() {
+			Config.this.clear();
+		}
+		
+	}
+	
+	private class StoringSet<E> extends StoringCollection<E> implements Set<E> {
+		
+		StoringSet(Set<E> view){
+			super(view);
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			return o == this || view.equals(o);
+		}
+		
+		@Override
+		public int hashCode() {
+			return view.hashCode();
+		}
+		
+	}
+	
+	private class StoringEntry implements Map.Entry<Object, Object> {
+		
+		private final Map.Entry<Object, Object> entry;
+		
+		StoringEntry(Map.Entry<Object, Object> entry){
+			this.entry = entry;
+		}
+		
+		@Override
+		public Object getKey() {
+			return entry.getKey();
+		}
+		
+		@Override
+		public Object getValue() {
+			return entry.getValue();
+		}
+		
+		@Override
+		public Object setValue(Object value) {
+			try{
+				synchronized (Config.this) {
+					beginChange();
+					return entry.setValue(value);
+				}
+			}finally{
+				commitEdit();
+			}
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			return o == this || entry.equals(o);
+		}
+		
+		@Override
+		public int hashCode() {
+			return entry.hashCode();
+		}
+		
+		@Override
+		public String toString() {
+			return entry.toString();
+		}
+		
+	}
+	
+	/**
+	 * An immutable copy of all properties, with caches for the parsed values.
+	 */
+	private static class Snapshot {
+		private final long version;
+		private final Map<String, String> values;
+		@SuppressWarnings("unchecked")
+		private final Map<String, Object>[] parsed = (Map<String, Object>[]) new Map<?, ?>[DURATION + 1];
+		
+		private Snapshot(Map<String, String> values, long version){
+			this.values = values;
+			this.version = version;
+			for(int i = 0; i < parsed.length; i++){
+				parsed[i] = new ConcurrentHashMap<String, Object>();
+			}
+		}
+	}
 	
 }
@@ -0,0 +1,39 @@
+package com.creditsuisse.util;
+
+/**
+ * Clones a container type (collections, maps, ...) through its public API instead of copying its internals field by field.
+ * <br/>The {@link Cloner} first creates an empty container with {@link #newInstance(Object)},
+ * then takes the {@link #elements(Object)} of the original, clones them and passes the clones to {@link #fill(Object, Object[])}.
+ * <br/>Implementations are registered per class with {@link Cloner#registerContainerCloner(Class, ContainerCloner)}.
+ * @param <T> the container type
+ */
+public interface ContainerCloner<T> {
+
+	/**
+	 * @param original the container to clone
+	 * @return a new, empty container of the same class and configuration (capacity, comparator, ...)
+	 */
+	public T newInstance(T original);
+
+	/**
+	 * @param original the container to clone
+	 * @return all elements of the container in iteration order, maps return their keys and values alternately
+	 */
+	public Object[] elements(T original);
+
+	/**
+	 * Adds the cloned elements to the new container.
+	 * @param clone the container created by {@link #newInstance(Object)}
+	 * @param elements the clones of the elements returned by {@link #elements(Object)}, in the same order
+	 */
+	public void fill(T clone, Object[] elements);
+
+	/**
+	 * Containers that call hashCode, equals or compareTo on their elements while being filled
+	 * are only filled once all other objects of the graph are complete.
+	 * <br/>A hashed container is filled after all hashed containers reachable from its elements, but cycles through them cannot be resolved.
+	 * @return true if {@link #fill(Object, Object[])} needs the elements to be completely cloned
+	 */
+	public boolean isHashed();
+
+}
@@ -0,0 +1,181 @@
+package com.creditsuisse.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The {@link ContainerCloner}s for the JDK collections that are registered by default.
+ * <br/>Only the exact classes are covered, subclasses may have additional state and are cloned field by field.
+ * <br/>Note that a cloned {@link LinkedHashMap} always uses insertion order, as the access order flag is not accessible.
+ */
+class ContainerCloners {
+
+	static void registerDefaults(){
+		Cloner.registerContainerCloner(ArrayList.class, new CollectionCloner<ArrayList<Object>>(false) {
+			@Override
+			public ArrayList<Object> newInstance(ArrayList<Object> original) {
+				return new ArrayList<Object>(original.size());
+			}
+		});
+		Cloner.registerContainerCloner(LinkedList.class, new CollectionCloner<LinkedList<Object>>(false) {
+			@Override
+			public LinkedList<Object> newInstance(LinkedList<Object> original) {
+				return new LinkedList<Object>();
+			}
+		});
+		Cloner.registerContainerCloner(ArrayDeque.class, new CollectionCloner<ArrayDeque<Object>>(false) {
+			@Override
+			public ArrayDeque<Object> newInstance(ArrayDeque<Object> original) {
+				return new ArrayDeque<Object>(Math.max(original.size(), 1));
+			}
+		});
+		Cloner.registerContainerCloner(Vector.class, new CollectionCloner<Vector<Object>>(false) {
+			@Override
+			public Vector<Object> newInstance(Vector<Object> original) {
+				return new Vector<Object>(Math.max(original.size(), 1));
+			}
+		});
+		Cloner.registerContainerCloner(CopyOnWriteArrayList.class, new CollectionCloner<CopyOnWriteArrayList<Object>>(false) {
+			@Override
+			public CopyOnWriteArrayList<Object> newInstance(CopyOnWriteArrayList<Object> original) {
+				return new CopyOnWriteArrayList<Object>();
+			}
+
+			@Override
+			public void fill(CopyOnWriteArrayList<Object> clone, Object[] elements) {
+				// adding one by one would copy the array for every element
+				clone.addAll(Arrays.asList(elements));
+			}
+		});
+		Cloner.registerContainerCloner(HashSet.class, new CollectionCloner<HashSet<Object>>(true) {
+			@Override
+			public HashSet<Object> newInstance(HashSet<Object> original) {
+				return new HashSet<Object>(capacityFor(original.size()));
+			}
+		});
+		Cloner.registerContainerCloner(LinkedHashSet.class, new CollectionCloner<LinkedHashSet<Object>>(true) {
+			@Override
+			public LinkedHashSet<Object> newInstance(LinkedHashSet<Object> original) {
+				return new LinkedHashSet<Object>(capacityFor(original.size()));
+			}
+		});
+		Cloner.registerContainerCloner(TreeSet.class, new CollectionCloner<TreeSet<Object>>(true) {
+			@Override
+			public TreeSet<Object> newInstance(TreeSet<Object> original) {
+				return new TreeSet<Object>(original.comparator());
+			}
+		});
+		Cloner.registerContainerCloner(HashMap.class, new MapCloner<HashMap<Object, Object>>(true) {
+			@Override
+			public HashMap<Object, Object> newInstance(HashMap<Object, Object> original) {
+				return new HashMap<Object, Object>(capacityFor(original.size()));
+			}
+		});
+		Cloner.registerContainerCloner(LinkedHashMap.class, new MapCloner<LinkedHashMap<Object, Object>>(true) {
+			@Override
+			public LinkedHashMap<Object, Object> newInstance(LinkedHashMap<Object, Object> original) {
+				return new LinkedHashMap<Object, Object>(capacityFor(original.size()));
+			}
+		});
+		Cloner.registerContainerCloner(TreeMap.class, new MapCloner<TreeMap<Object, Object>>(true) {
+			@Override
+			public TreeMap<Object, Object> newInstance(TreeMap<Object, Object> original) {
+				return new TreeMap<Object, Object>(original.comparator());
+			}
+		});
+		Cloner.registerContainerCloner(ConcurrentHashMap.class, new MapCloner<ConcurrentHashMap<Object, Object>>(true) {
+			@Override
+			public ConcurrentHashMap<Object, Object> newInstance(ConcurrentHashMap<Object, Object> original) {
+				return new ConcurrentHashMap<Object, Object>(capacityFor(original.size()));
+			}
+		});
+		Cloner.registerContainerCloner(IdentityHashMap.class, new MapCloner<IdentityHashMap<Object, Object>>(false) {
+			@Override
+			public IdentityHashMap<Object, Object> newInstance(IdentityHashMap<Object, Object> original) {
+				return new IdentityHashMap<Object, Object>(original.size());
+			}
+		});
+	}
+
+	/**
+	 * @param size the amount of elements
+	 * @return the initial capacity a hash based collection needs to hold the given amount of elements without resizing
+	 */
+	private static int capacityFor(int size){
+		return (int) Math.min(size / 0.75f + 1, Integer.MAX_VALUE);
+	}
+
+	private static abstract class CollectionCloner<T extends Collection<Object>> implements ContainerCloner<T> {
+
+		private final boolean hashed;
+
+		private CollectionCloner(boolean hashed){
+			this.hashed = hashed;
+		}
+
+		@Override
+		public Object[] elements(T original) {
+			return original.toArray();
+		}
+
+		@Override
+		public void fill(T clone, Object[] elements) {
+			for(Object element : elements){
+				clone.add(element);
+			}
+		}
+
+		@Override
+		public boolean isHashed() {
+			return hashed;
+		}
+	}
+
+	private static abstract class MapCloner<T extends Map<Object, Object>> implements ContainerCloner<T> {
+
+		private final boolean hashed;
+
+		private MapCloner(boolean hashed){
+			this.hashed = hashed;
+		}
+
+		@Override
+		public Object[] elements(T original) {
+			Object[] elements = new Object[original.size() * 2];
+			int i = 0;
+			for(Entry<Object, Object> entry : original.entrySet()){
+				elements[i++] = entry.getKey();
+				elements[i++] = entry.getValue();
+			}
+			return elements;
+		}
+
+		@Override
+		public void fill(T clone, Object[] elements) {
+			for(int i = 0; i < elements.length; i += 2){
+				clone.put(elements[i], elements[i + 1]);
+			}
+		}
+
+		@Override
+		public boolean isHashed() {
+			return hashed;
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package com.creditsuisse.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An {@link ObjectCodec} that compresses the output of another codec using Deflate (the algorithm of ZIP files).
+ */
+public class DeflateCodec implements ObjectCodec {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final ObjectCodec codec;
+	private final int level;
+
+	/**
+	 * Creates a codec that favors speed over size ({@link Deflater#BEST_SPEED}).
+	 * @param codec the codec whose output is compressed
+	 */
+	public DeflateCodec(ObjectCodec codec){
+		this(codec, Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * @param codec the codec whose output is compressed
+	 * @param level the compression level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+	 */
+	public DeflateCodec(ObjectCodec codec, int level){
+		if(level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)){
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		this.codec = codec;
+		this.level = level;
+	}
+
+	@Override
+	public <T> T read(InputStream in, Class<T> type) throws IOException {
+		Inflater inflater = new Inflater();
+		try{
+			// not closed, that would close the given stream
+			InflaterInputStream inflaterIn = new InflaterInputStream(in, inflater, BUFFER_SIZE);
+			return codec.read(inflaterIn, type);
+		}finally{
+			inflater.end();
+		}
+	}
+
+	@Override
+	public void write(OutputStream out, Object value, Class<?> type) throws IOException {
+		Deflater deflater = new Deflater(level);
+		try{
+			// finished instead of closed, that would close the given stream
+			DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+			codec.write(deflaterOut, value, type);
+			deflaterOut.finish();
+			out.flush();
+		}finally{
+			deflater.end();
+		}
+	}
+
+}
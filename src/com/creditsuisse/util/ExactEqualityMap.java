@@ -1,30 +1,102 @@
 package com.creditsuisse.util;
 
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
-import org.apache.commons.collections4.keyvalue.DefaultMapEntry;
-import org.apache.commons.collections4.map.MultiKeyMap;
-
 /**
  * A map that uses the == operator to check for equality (instead of comparing the hash).
+ * <br/>Keys and values are stored in two parallel arrays using open addressing (linear probing on {@link System#identityHashCode(Object)}),
+ * so no objects are allocated per entry.
+ * <br/>Null keys and null values are permitted.
  */
-public class ExactEqualityMap<K, V> implements Map<K, V>{
-	
+public class ExactEqualityMap<K, V> extends AbstractMap<K, V> implements Map<K, V>{
+
+	private static final int DEFAULT_CAPACITY = 32;
+	private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+	// stands in for the null key, as null marks a free slot in the key array
+	private static final Object NULL_KEY = new Object();
+
 	private int size = 0;
-	
-	private Random keyGenerator = new Random();
-	
-	// the real storage
-	private Map<Integer, Map<Integer, K>> keys = new HashMap<Integer, Map<Integer, K>>();
-	private MultiKeyMap<Integer, V> values = new MultiKeyMap<Integer, V>();
-	
+	private int modCount = 0;
+
+	// the real storage, the capacity is always a power of two and at most two thirds of it are used
+	private Object[] keys;
+	private Object[] values;
+
+	private Set<K> keySet;
+	private Collection<V> valueCollection;
+	private Set<Entry<K, V>> entrySet;
+
+	public ExactEqualityMap(){
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a map that can hold the given amount of entries without having to resize.
+	 * @param expectedSize the amount of entries this map is expected to hold
+	 */
+	public ExactEqualityMap(int expectedSize){
+		int capacity = capacityFor(expectedSize);
+		keys = new Object[capacity];
+		values = new Object[capacity];
+	}
+
+	private static int capacityFor(int expectedSize){
+		if(expectedSize < 0) throw new IllegalArgumentException("Expected size must not be negative: " + expectedSize);
+		long minCapacity = expectedSize + (expectedSize >> 1) + 1;
+		if(minCapacity >= MAXIMUM_CAPACITY) return MAXIMUM_CAPACITY;
+		int capacity = Integer.highestOneBit((int) minCapacity);
+		if(capacity < minCapacity) capacity <<= 1;
+		return Math.max(capacity, 4);
+	}
+
+	private static Object maskNull(Object key){
+		return key == null ? NULL_KEY : key;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K> K unmaskNull(Object key){
+		return key == NULL_KEY ? null : (K) key;
+	}
+
+	private static int hash(Object key, int length){
+		int hash = System.identityHashCode(key);
+		// spread the bits a little, identity hashes tend to share their low bits
+		hash ^= (hash >>> 16);
+		return hash & (length - 1);
+	}
+
+	private static int nextIndex(int index, int length){
+		return (index + 1) & (length - 1);
+	}
+
+	/**
+	 * @param key the masked key to look for
+	 * @return the index of the given key or -1 if it is not in this map
+	 */
+	private int indexOf(Object key){
+		Object[] keys = this.keys;
+		int index = hash(key, keys.length);
+		while(true){
+			Object possibleKey = keys[index];
+			if(possibleKey == key){
+				return index;
+			}else if(possibleKey == null){
+				return -1;
+			}
+			index = nextIndex(index, keys.length);
+		}
+	}
 
 	@Override
 	public int size() {
@@ -38,22 +110,15 @@ public class ExactEqualityMap<K, V> implements Map<K, V>{
 
 	@Override
 	public boolean containsKey(Object key) {
-		int hash = System.identityHashCode(key);
-		Map<Integer, K> possibleKeys = keys.get(hash);
-		if(possibleKeys != null){
-			for(K possibleKey : possibleKeys.values()){
-				if(possibleKey == key){
-					return true;
-				}
-			}
-		}
-		return false;
+		return indexOf(maskNull(key)) != -1;
 	}
 
 	@Override
 	public boolean containsValue(Object value) {
-		for(V possibleValue : values.values()){
-			if(possibleValue == value){
+		Object[] keys = this.keys;
+		Object[] values = this.values;
+		for(int i = 0; i < keys.length; i++){
+			if(keys[i] != null && values[i] == value){
 				return true;
 			}
 		}
@@ -61,165 +126,392 @@ public class ExactEqualityMap<K, V> implements Map<K, V>{
 	}
 
 	@Override
+	@SuppressWarnings("unchecked")
 	public V get(Object key) {
-		int hash = System.identityHashCode(key);
-		Map<Integer, K> possibleKeys = keys.get(hash);
-		if(possibleKeys != null){
-			for(int i : possibleKeys.keySet()){
-				K possibleKey = possibleKeys.get(i);
-				if(possibleKey == key){
-					return values.get(hash, i);
-				}
-			}
-		}
-		return null;
+		int index = indexOf(maskNull(key));
+		return index == -1 ? null : (V) values[index];
 	}
 
 	@Override
+	@SuppressWarnings("unchecked")
 	public V put(K key, V value) {
-		int hash = System.identityHashCode(key);
-		Map<Integer, K> possibleKeys = keys.get(hash);
-		if(possibleKeys == null){
-			possibleKeys = new HashMap<Integer, K>();
-			keys.put(hash, possibleKeys);
-		}
-		
-		int keyIndex = -1;
-		for(int i = 0; i < possibleKeys.size(); i++){
-			K possibleKey = possibleKeys.get(i);
-			if(possibleKey == key){
-				keyIndex = i;
+		Object maskedKey = maskNull(key);
+		Object[] keys = this.keys;
+		int index = hash(maskedKey, keys.length);
+		while(true){
+			Object possibleKey = keys[index];
+			if(possibleKey == maskedKey){
+				V prevValue = (V) values[index];
+				values[index] = value;
+				return prevValue;
+			}else if(possibleKey == null){
 				break;
 			}
+			index = nextIndex(index, keys.length);
 		}
-		
-		if(keyIndex == -1){
-			while(keyIndex < 0 || possibleKeys.containsKey(keyIndex)){
-				keyIndex = keyGenerator.nextInt();
-			}
-			possibleKeys.put(keyIndex, key);
+
+		keys[index] = maskedKey;
+		values[index] = value;
+		size++;
+		modCount++;
+		if(size * 3 > keys.length * 2){
+			resize();
 		}
-		
-		V prevValue = values.put(hash, keyIndex, value);
-		if(prevValue == null){
-			size++;
+		return null;
+	}
+
+	private void resize(){
+		Object[] oldKeys = keys;
+		Object[] oldValues = values;
+		if(oldKeys.length == MAXIMUM_CAPACITY){
+			if(size == MAXIMUM_CAPACITY - 1) throw new IllegalStateException("Capacity exhausted.");
+			return;
 		}
-		return prevValue;
+		int capacity = oldKeys.length * 2;
+		Object[] newKeys = new Object[capacity];
+		Object[] newValues = new Object[capacity];
+		for(int i = 0; i < oldKeys.length; i++){
+			Object key = oldKeys[i];
+			if(key != null){
+				int index = hash(key, capacity);
+				while(newKeys[index] != null){
+					index = nextIndex(index, capacity);
+				}
+				newKeys[index] = key;
+				newValues[index] = oldValues[i];
+			}
+		}
+		keys = newKeys;
+		values = newValues;
 	}
 
 	@Override
+	@SuppressWarnings("unchecked")
 	public V remove(Object key) {
-		int hash = System.identityHashCode(key);
-		Map<Integer, K> possibleKeys = keys.get(hash);
-		if(possibleKeys != null){
-			int keyIndex = -1;
-			for(int i : possibleKeys.keySet()){
-				K possibleKey = possibleKeys.get(i);
-				if(possibleKey == key){
-					keyIndex = i;
-					possibleKeys.remove(i);
-					if(possibleKeys.isEmpty()){
-						keys.remove(hash);
-					}
-					break;
-				}
-			}
-			
-			if(keyIndex != -1){
-				V value = values.removeMultiKey(hash, keyIndex);
-				if(value != null){
-					size--;
-				}
-				return value;
+		int index = indexOf(maskNull(key));
+		if(index == -1){
+			return null;
+		}
+		V value = (V) values[index];
+		removeAt(index, null);
+		return value;
+	}
+
+	/**
+	 * Removes the entry at the given index and moves following entries of the same probe sequence back,
+	 * so that lookups never have to skip over deleted slots.
+	 * @param index the index of the entry to remove
+	 * @param wrappedKeys if not null, keys moved from the start of the table to its end are added to this list (relevant for iteration)
+	 */
+	private void removeAt(int index, List<Object> wrappedKeys){
+		Object[] keys = this.keys;
+		Object[] values = this.values;
+		int length = keys.length;
+		size--;
+		modCount++;
+		keys[index] = null;
+		values[index] = null;
+
+		int free = index;
+		int i = nextIndex(index, length);
+		Object key;
+		while((key = keys[i]) != null){
+			int home = hash(key, length);
+			// move the entry if its home slot is not cyclically within (free, i]
+			if((i < home && (home <= free || free <= i)) || (home <= free && free <= i)){
+				if(i < free && wrappedKeys != null) wrappedKeys.add(key);
+				keys[free] = key;
+				values[free] = values[i];
+				keys[i] = null;
+				values[i] = null;
+				free = i;
 			}
+			i = nextIndex(i, length);
 		}
-		return null;
 	}
 
 	@Override
 	public void putAll(Map<? extends K, ? extends V> m) {
-		for(K key : m.keySet()){
-			put(key, m.get(key));
+		for(Entry<? extends K, ? extends V> entry : m.entrySet()){
+			put(entry.getKey(), entry.getValue());
 		}
 	}
 
 	@Override
 	public void clear() {
-		keys.clear();
-		values.clear();
+		for(int i = 0; i < keys.length; i++){
+			keys[i] = null;
+			values[i] = null;
+		}
 		size = 0;
+		modCount++;
 	}
 
 	/**
-	 * <b>USAGE OF THIS METHOD IS HIGHLY DISCOURAGED!!!</b>
-	 * <br/>Use {@link #keyList()} instead.
-	 * <br/>
-	 * <br/>Due to the nature of set (using equals() instead of ==) this method may not return all keys.
-	 * @return all keys in this map, but objects with the same hash will replace each other
-	 * @see #keyList()
+	 * Returns a view of the keys in this map.
+	 * <br/>Unlike other sets, this set uses the == operator to check for containment.
+	 * @return all keys in this map
 	 */
+	@Override
 	public Set<K> keySet() {
-		Set<K> keySet = new HashSet<K>();
-		for(Map<Integer, K> possibleKeys : keys.values()){
-			keySet.addAll(possibleKeys.values());
+		if(keySet == null){
+			keySet = new AbstractSet<K>() {
+
+				@Override
+				public Iterator<K> iterator() {
+					return new EntryIterator<K>() {
+						@Override
+						protected K current() {
+							return unmaskNull(keys[lastIndex]);
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+
+				@Override
+				public boolean contains(Object o) {
+					return containsKey(o);
+				}
+
+				@Override
+				public boolean remove(Object o) {
+					int index = indexOf(maskNull(o));
+					if(index == -1) return false;
+					removeAt(index, null);
+					return true;
+				}
+
+				@Override
+				public void clear() {
+					ExactEqualityMap.this.clear();
+				}
+			};
 		}
 		return keySet;
 	}
-	
+
 	/**
-	 * The accurate replacement for {@link #keySet()}.
+	 * Copies all keys into a list.
 	 * @return all keys in this map
 	 */
 	public List<K> keyList() {
-		List<K> keyList = new ArrayList<K>();
-		for(Map<Integer, K> possibleKeys : keys.values()){
-			keyList.addAll(possibleKeys.values());
-		}
-		return keyList;
+		return new ArrayList<K>(keySet());
 	}
 
 	@Override
 	public Collection<V> values() {
-		return values.values();
+		if(valueCollection == null){
+			valueCollection = new AbstractCollection<V>() {
+
+				@Override
+				public Iterator<V> iterator() {
+					return new EntryIterator<V>() {
+						@Override
+						@SuppressWarnings("unchecked")
+						protected V current() {
+							return (V) values[lastIndex];
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+
+				@Override
+				public boolean contains(Object o) {
+					return containsValue(o);
+				}
+
+				@Override
+				public void clear() {
+					ExactEqualityMap.this.clear();
+				}
+			};
+		}
+		return valueCollection;
 	}
-	
+
 	/**
-	 * <b>USAGE OF THIS METHOD IS HIGHLY DISCOURAGED!!!</b>
-	 * <br/>Use {@link #entryList()} instead.
-	 * <br/>
-	 * <br/>Due to the nature of set (using equals() instead of ==) this method may not return all entries.
-	 * <br/>This is not very efficient because every Entry has to be created on each call of this method
-	 * @return all entries in this map, but objects with the same hash will replace each other
+	 * Returns a view of the entries in this map.
+	 * <br/>The entries returned by the iterator are views as well, they write through to this map.
+	 * @return all entries in this map
 	 */
+	@Override
 	public Set<Entry<K, V>> entrySet() {
-		Set<Entry<K, V>> entrySet = new HashSet<Entry<K, V>>();
-		for(int hash : keys.keySet()){
-			Map<Integer, K> keysForHash = keys.get(hash);
-			for(int keyIndex : keysForHash.keySet()){
-				K key = keysForHash.get(keyIndex);
-				V value = values.get(hash, keyIndex);
-				entrySet.add(new DefaultMapEntry<K, V>(key, value));
-			}
+		if(entrySet == null){
+			entrySet = new AbstractSet<Entry<K, V>>() {
+
+				@Override
+				public Iterator<Entry<K, V>> iterator() {
+					return new EntryIterator<Entry<K, V>>() {
+						@Override
+						protected Entry<K, V> current() {
+							return new MapEntry(lastIndex);
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+
+				@Override
+				public boolean contains(Object o) {
+					if(!(o instanceof Entry)) return false;
+					Entry<?, ?> entry = (Entry<?, ?>) o;
+					int index = indexOf(maskNull(entry.getKey()));
+					return index != -1 && values[index] == entry.getValue();
+				}
+
+				@Override
+				public boolean remove(Object o) {
+					if(!contains(o)) return false;
+					removeAt(indexOf(maskNull(((Entry<?, ?>) o).getKey())), null);
+					return true;
+				}
+
+				@Override
+				public void clear() {
+					ExactEqualityMap.this.clear();
+				}
+			};
 		}
 		return entrySet;
 	}
-	
+
 	/**
-	 * The accurate replacement for {@link #entrySet()}.
-	 * <br/>This is not very efficient because every Entry has to be created on each call of this method
+	 * Copies all entries into a list.
 	 * @return all entries in this map
 	 */
 	public List<Entry<K, V>> entryList() {
-		List<Entry<K, V>> entryList = new ArrayList<Entry<K, V>>();
-		for(int hash : keys.keySet()){
-			Map<Integer, K> keysForHash = keys.get(hash);
-			for(int keyIndex : keysForHash.keySet()){
-				K key = keysForHash.get(keyIndex);
-				V value = values.get(hash, keyIndex);
-				entryList.add(new DefaultMapEntry<K, V>(key, value));
+		List<Entry<K, V>> entryList = new ArrayList<Entry<K, V>>(size);
+		for(int i = 0; i < keys.length; i++){
+			if(keys[i] != null){
+				entryList.add(new SimpleImmutableEntry<K, V>(ExactEqualityMap.<K>unmaskNull(keys[i]), valueAt(i)));
 			}
 		}
 		return entryList;
 	}
 
+	@SuppressWarnings("unchecked")
+	private V valueAt(int index){
+		return (V) values[index];
+	}
+
+	/**
+	 * Iterates over the occupied slots of the table.
+	 * <br/>Removing an entry may move an already visited entry from the start of the table to its end,
+	 * those are remembered and skipped when they are encountered again.
+	 */
+	private abstract class EntryIterator<E> implements Iterator<E> {
+
+		private int index = 0;
+		protected int lastIndex = -1;
+		private int expectedModCount = modCount;
+
+		// only used in the rare case of a wrap around while removing
+		private List<Object> visitedKeys;
+
+		private boolean advance(){
+			Object[] keys = ExactEqualityMap.this.keys;
+			while(index < keys.length){
+				Object key = keys[index];
+				if(key != null){
+					if(visitedKeys == null || !removeIdentical(visitedKeys, key)){
+						return true;
+					}
+				}
+				index++;
+			}
+			return false;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return advance();
+		}
+
+		@Override
+		public E next() {
+			if(modCount != expectedModCount) throw new ConcurrentModificationException();
+			if(!advance()) throw new NoSuchElementException();
+			lastIndex = index++;
+			return current();
+		}
+
+		protected abstract E current();
+
+		@Override
+		public void remove() {
+			if(lastIndex == -1) throw new IllegalStateException();
+			if(modCount != expectedModCount) throw new ConcurrentModificationException();
+			if(visitedKeys == null) visitedKeys = new ArrayList<Object>(0);
+			removeAt(lastIndex, visitedKeys);
+			// the slot may have been refilled by a following entry that has not been visited yet
+			index = lastIndex;
+			lastIndex = -1;
+			expectedModCount = modCount;
+		}
+	}
+
+	private static boolean removeIdentical(List<Object> list, Object object){
+		for(int i = 0; i < list.size(); i++){
+			if(list.get(i) == object){
+				list.remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private class MapEntry implements Entry<K, V> {
+
+		private final int index;
+
+		private MapEntry(int index){
+			this.index = index;
+		}
+
+		@Override
+		public K getKey() {
+			return unmaskNull(keys[index]);
+		}
+
+		@Override
+		public V getValue() {
+			return valueAt(index);
+		}
+
+		@Override
+		public V setValue(V value) {
+			V prevValue = valueAt(index);
+			values[index] = value;
+			return prevValue;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Entry)) return false;
+			Entry<?, ?> entry = (Entry<?, ?>) o;
+			return entry.getKey() == getKey() && entry.getValue() == getValue();
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(getKey()) ^ System.identityHashCode(getValue());
+		}
+
+		@Override
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
+
 }
@@ -3,8 +3,13 @@ package com.creditsuisse.util;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class FileUtil {
 
@@ -166,6 +171,38 @@ public class FileUtil {
 		return createTempDirectory("temp" + System.nanoTime());
 	}
 	
+	/**
+	 * Creates an empty temporary file in the directory of the given file, to be written and then moved over it.
+	 * <br/>If the file exists, the temporary file gets its POSIX permissions, so replacing the file does not change them
+	 * ({@link Files#createTempFile(Path, String, String, java.nio.file.attribute.FileAttribute...)} would make it readable by the owner only).
+	 * Otherwise it gets the default permissions of new files.
+	 * @param target the file that is going to be replaced
+	 * @return the temporary file
+	 * @throws IOException if the file cannot be created
+	 */
+	public static File createTempFileFor(File target) throws IOException {
+		Path directory = target.getAbsoluteFile().getParentFile().toPath();
+		Path temp;
+		while(true){
+			temp = directory.resolve("." + target.getName() + "." + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+			try{
+				Files.createFile(temp);
+				break;
+			}catch(FileAlreadyExistsException e){
+				// used by another writer, try another name
+			}
+		}
+		try{
+			if(target.exists() && Files.getFileStore(temp).supportsFileAttributeView(PosixFileAttributeView.class)){
+				Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target.toPath()));
+			}
+		}catch(IOException | RuntimeException e){
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		return temp.toFile();
+	}
+	
 	/**
 	 * Writes the given data to the given file.
 	 * @param file the file to write to
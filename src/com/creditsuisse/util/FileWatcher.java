@@ -0,0 +1,202 @@
+package com.creditsuisse.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notifies listeners when files are created, modified or deleted.
+ * <br/>All files are watched by a single {@link WatchService} and a single daemon thread for the whole JVM,
+ * the directories of the watched files are registered with it as needed.
+ * <br/>Listeners are called on the watcher thread, they should return quickly. A single write may cause multiple notifications.
+ * <br/>If a watched directory is deleted or replaced (e.g. by a deployment), it is registered again as soon as it exists again
+ * and the listeners of its files are notified, as the files may have changed in the meantime.
+ */
+public class FileWatcher {
+
+	// how often directories that are gone are checked for, in milliseconds
+	private static final long RETRY_INTERVAL = 1000;
+
+	private static WatchService service;
+	private static Thread thread;
+
+	// the following are guarded by the class
+	// the listeners of the watched files by directory and file name
+	private static final Map<Path, Map<Path, List<ChangeListener>>> LISTENERS = new HashMap<Path, Map<Path, List<ChangeListener>>>();
+	// the registered directories
+	private static final Map<Path, WatchKey> KEYS = new HashMap<Path, WatchKey>();
+	// the watched directories that are gone, registered again once they exist
+	private static final Set<Path> LOST_DIRECTORIES = new HashSet<Path>();
+
+	private FileWatcher(){}
+
+	/**
+	 * Starts notifying the given listener about changes of the given file, the file does not have to exist yet.
+	 * @param file the file to watch
+	 * @param listener the listener to notify
+	 */
+	public static synchronized void watch(File file, ChangeListener listener){
+		Path path = file.getAbsoluteFile().toPath();
+		Path directory = path.getParent();
+		try{
+			if(service == null){
+				service = FileSystems.getDefault().newWatchService();
+				thread = new Thread("File Watcher"){
+					public void run(){
+						dispatch();
+					}
+				};
+				thread.setDaemon(true);
+				thread.start();
+			}
+			WatchKey key = KEYS.get(directory);
+			if(key == null || !key.isValid()){
+				directory.toFile().mkdirs();
+				KEYS.put(directory, register(directory));
+				LOST_DIRECTORIES.remove(directory);
+			}
+			Map<Path, List<ChangeListener>> files = LISTENERS.get(directory);
+			if(files == null){
+				files = new HashMap<Path, List<ChangeListener>>();
+				LISTENERS.put(directory, files);
+			}
+			List<ChangeListener> listeners = files.get(path.getFileName());
+			if(listeners == null){
+				listeners = new ArrayList<ChangeListener>();
+				files.put(path.getFileName(), listeners);
+			}
+			listeners.add(listener);
+		}catch(IOException e){
+			throw new RuntimeException("Failed to watch " + path, e);
+		}
+	}
+
+	/**
+	 * Stops notifying the given listener about changes of the given file.
+	 * @param file the watched file
+	 * @param listener the listener passed to {@link #watch(File, ChangeListener)}
+	 */
+	public static synchronized void unwatch(File file, ChangeListener listener){
+		Path path = file.getAbsoluteFile().toPath();
+		Path directory = path.getParent();
+		Map<Path, List<ChangeListener>> files = LISTENERS.get(directory);
+		if(files == null) return;
+		List<ChangeListener> listeners = files.get(path.getFileName());
+		if(listeners == null) return;
+		listeners.remove(listener);
+		if(listeners.isEmpty()){
+			files.remove(path.getFileName());
+			if(files.isEmpty()){
+				// nothing is watched in this directory anymore
+				WatchKey key = KEYS.remove(directory);
+				if(key != null) key.cancel();
+				LISTENERS.remove(directory);
+				LOST_DIRECTORIES.remove(directory);
+			}
+		}
+	}
+
+	private static WatchKey register(Path directory) throws IOException{
+		return directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+	}
+
+	private static synchronized boolean hasLostDirectories(){
+		return !LOST_DIRECTORIES.isEmpty();
+	}
+
+	private static void dispatch(){
+		while(true){
+			WatchKey key;
+			try{
+				// while directories are gone, they are checked for at least every retry interval
+				key = hasLostDirectories() ? service.poll(RETRY_INTERVAL, TimeUnit.MILLISECONDS) : service.take();
+			}catch(InterruptedException | ClosedWatchServiceException e){
+				return;
+			}
+
+			List<ChangeListener> toNotify = new ArrayList<ChangeListener>();
+			synchronized (FileWatcher.class) {
+				if(key != null){
+					Path directory = (Path) key.watchable();
+					List<WatchEvent<?>> events = key.pollEvents();
+					// the events of a cancelled key (see unwatch) are ignored
+					boolean registered = KEYS.get(directory) == key;
+					if(registered){
+						Map<Path, List<ChangeListener>> files = LISTENERS.get(directory);
+						for(WatchEvent<?> event : events){
+							if(event.kind() == StandardWatchEventKinds.OVERFLOW){
+								// events have been lost, any file may have changed
+								for(List<ChangeListener> listeners : files.values()){
+									addAll(toNotify, listeners);
+								}
+							}else{
+								List<ChangeListener> listeners = files.get(event.context());
+								if(listeners != null) addAll(toNotify, listeners);
+							}
+						}
+					}
+					if(!key.reset() && registered){
+						// the directory is gone, its listeners are kept until it is registered again
+						KEYS.remove(directory);
+						LOST_DIRECTORIES.add(directory);
+					}
+				}
+				registerLostDirectories(toNotify);
+			}
+
+			for(ChangeListener listener : toNotify){
+				try{
+					listener.onChange();
+				}catch(RuntimeException e){
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Registers the directories that are gone but exist again and adds the listeners of their files to the given list.
+	 */
+	private static void registerLostDirectories(List<ChangeListener> toNotify){
+		for(Iterator<Path> iterator = LOST_DIRECTORIES.iterator(); iterator.hasNext();){
+			Path directory = iterator.next();
+			if(!Files.isDirectory(directory)) continue;
+			try{
+				KEYS.put(directory, register(directory));
+			}catch(IOException e){
+				// gone again, retried later
+				continue;
+			}
+			iterator.remove();
+			// the files may have been changed, created or deleted while the directory was not watched
+			for(List<ChangeListener> listeners : LISTENERS.get(directory).values()){
+				addAll(toNotify, listeners);
+			}
+		}
+	}
+
+	/**
+	 * Adds the listeners that are not in the target yet, so each listener is only called once per batch of events.
+	 */
+	private static void addAll(List<ChangeListener> target, List<ChangeListener> listeners){
+		for(ChangeListener listener : listeners){
+			if(!target.contains(listener)) target.add(listener);
+		}
+	}
+
+}
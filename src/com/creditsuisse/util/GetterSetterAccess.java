@@ -1,5 +1,9 @@
 package com.creditsuisse.util;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
@@ -7,96 +11,578 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.commons.collections4.map.MultiKeyMap;
-
+/**
+ * Accesses the attributes (getter-setter-pairs) of a class.
+ * <br/>Getters without a matching setter are no attributes, but can still be read by name.
+ * <br/>The accessors are resolved once per class and turned into {@link MethodHandle}s, so creating another access for the same class is cheap.
+ * <br/>Attributes can be addressed by name or, faster, by their index in {@link #getAttributes()}.
+ * The typed variants (like {@link #getInt(Object, int)}) do not box primitive values.
+ */
 public class GetterSetterAccess {
-	
+
 	private static final Pattern GETTER_PATTERN = Pattern.compile("(get|is)(.*)");
 	private static final Pattern SETTER_PATTERN = Pattern.compile("(set)(.*)");
-	
-	private final List<String> attributes = new ArrayList<String>();
-	private final Map<String, Class<?>> attributeTypes = new HashMap<String, Class<?>>();
-	private final Map<String, Method> getters = new HashMap<String, Method>();
-	private final MultiKeyMap<Object, Method> setters = new MultiKeyMap<Object, Method>();
-	
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+	// bulk extractions of lists with less elements than this are never split
+	private static final int PARALLEL_CHUNK_SIZE = 1024;
+
+	// the resolved accessors per class, with and without the requirement of a matching field
+	private static final ClassValue<Accessors> ACCESSORS = new ClassValue<Accessors>() {
+		@Override
+		protected Accessors computeValue(Class<?> type) {
+			return new Accessors(type, false);
+		}
+	};
+	private static final ClassValue<Accessors> FIELD_ACCESSORS = new ClassValue<Accessors>() {
+		@Override
+		protected Accessors computeValue(Class<?> type) {
+			return new Accessors(type, true);
+		}
+	};
+
+	private final Accessors accessors;
+
 	public GetterSetterAccess(Class<?> clazz){
 		this(clazz, false);
 	}
-	
+
 	public GetterSetterAccess(Class<?> clazz, boolean fieldMustExist){
-		for(Method method : ReflectionUtil.getAllMethodsInHierarchy(clazz)){
-		    if(Modifier.isPublic(method.getModifiers())) {
-				String name = method.getName();
-				
-				Matcher getterMatcher = GETTER_PATTERN.matcher(name);
-				if(getterMatcher.matches() && method.getParameterTypes().length == 0 && method.getReturnType() != null){
-					String attributeName = getterMatcher.group(2);
-					if(!attributeName.isEmpty()){
-						attributeName = StringUtil.setCapitalizedAt(attributeName, 0, false);
-						getters.put(attributeName, method);
-						attributeTypes.put(attributeName, method.getReturnType());
-					}
-					continue;
+		accessors = fieldMustExist ? FIELD_ACCESSORS.get(clazz) : ACCESSORS.get(clazz);
+	}
+
+	public String[] getAttributes(){
+		return accessors.attributes.clone();
+	}
+
+	/**
+	 * @return the amount of attributes
+	 */
+	public int getAttributeCount(){
+		return accessors.attributes.length;
+	}
+
+	/**
+	 * @param attribute the name of an attribute
+	 * @return the index of the attribute in {@link #getAttributes()} or -1 if there is no such attribute
+	 */
+	public int getAttributeIndex(String attribute){
+		Integer index = accessors.indices.get(attribute);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * @param attribute the name of an attribute or of a getter without setter
+	 * @return the return type of the getter or null if there is no such getter
+	 */
+	public Class<?> getAttributeType(String attribute){
+		return accessors.getterTypes.get(attribute);
+	}
+
+	/**
+	 * @param attribute the index of the attribute
+	 * @return the type of the attribute
+	 */
+	public Class<?> getAttributeType(int attribute){
+		return accessors.types[attribute];
+	}
+
+	/**
+	 * @param object the object to get the value from
+	 * @param attribute the name of an attribute or of a getter without setter
+	 * @return the value returned by the getter, primitives are boxed
+	 */
+	public Object getValue(Object object, String attribute){
+		int index = getAttributeIndex(attribute);
+		if(index != -1){
+			return getValue(object, index);
+		}
+		MethodHandle getter = accessors.readOnlyGetters.get(attribute);
+		if(getter == null){
+			throw new IllegalArgumentException("Unknown attribute: " + attribute);
+		}
+		try {
+			return (Object) getter.invokeExact(object);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException("Failed to get attribute " + attribute, e);
+		}
+	}
+
+	public void setValue(Object object, String attribute, Object value){
+		setValue(object, indexOf(attribute), value);
+	}
+
+	private int indexOf(String attribute){
+		int index = getAttributeIndex(attribute);
+		if(index == -1){
+			throw new IllegalArgumentException("Unknown attribute: " + attribute);
+		}
+		return index;
+	}
+
+	/**
+	 * Wraps a checked exception thrown by a getter or setter, runtime exceptions and errors are rethrown as they are.
+	 */
+	private RuntimeException accessFailed(String action, int attribute, Throwable cause){
+		return new RuntimeException("Failed to " + action + " attribute " + accessors.attributes[attribute], cause);
+	}
+
+	/**
+	 * @param object the object to get the value from
+	 * @param attribute the index of the attribute
+	 * @return the value returned by the getter, primitives are boxed
+	 */
+	public Object getValue(Object object, int attribute){
+		try {
+			return (Object) accessors.getters[attribute].invokeExact(object);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw accessFailed("get", attribute, e);
+		}
+	}
+
+	/**
+	 * @param object the object to set the value on
+	 * @param attribute the index of the attribute
+	 * @param value the value to pass to the setter
+	 */
+	public void setValue(Object object, int attribute, Object value){
+		try {
+			accessors.setters[attribute].invokeExact(object, value);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw accessFailed("set", attribute, e);
+		}
+	}
+
+	/**
+	 * Extracts the values of all attributes of the given object.
+	 * @param object the object to get the values from
+	 * @return the values in the order of {@link #getAttributes()}
+	 */
+	public Object[] getValues(Object object){
+		return getValues(object, new Object[accessors.attributes.length]);
+	}
+
+	/**
+	 * Extracts the values of all attributes of the given object into the given row, which can be reused for multiple objects.
+	 * @param object the object to get the values from
+	 * @param row an array with at least {@link #getAttributeCount()} elements
+	 * @return the given row, filled with the values in the order of {@link #getAttributes()}
+	 */
+	public Object[] getValues(Object object, Object[] row){
+		MethodHandle[] getters = accessors.getters;
+		for(int i = 0; i < getters.length; i++){
+			try {
+				row[i] = (Object) getters[i].invokeExact(object);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw accessFailed("get", i, e);
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Extracts the values of all attributes of all given objects, one row per object.
+	 * @param objects the objects to get the values from
+	 * @param parallel true to extract the rows concurrently (only worth it for large lists with expensive getters)
+	 * @return an array containing a row for each object, the values of each row are in the order of {@link #getAttributes()}
+	 * @throws RuntimeException the first exception thrown by a getter, the extraction is aborted
+	 */
+	public Object[][] getRows(List<?> objects, boolean parallel){
+		final Object[] source = objects.toArray();
+		final Object[][] rows = new Object[source.length][];
+		forEachRange(source.length, parallel, new RangeAction() {
+			@Override
+			public void run(int from, int to) {
+				for(int i = from; i < to; i++){
+					rows[i] = getValues(source[i]);
 				}
-				
-				Matcher setterMatcher = SETTER_PATTERN.matcher(name);
-				if(setterMatcher.matches() && method.getParameterTypes().length == 1){
-					String attributeName = setterMatcher.group(2);
-					if(!attributeName.isEmpty()){
-						attributeName = StringUtil.setCapitalizedAt(attributeName, 0, false);
-						setters.put(attributeName, method.getParameterTypes()[0], method);
+			}
+		});
+		return rows;
+	}
+
+	/**
+	 * Extracts the values of all attributes of all given objects, one column per attribute.
+	 * @param objects the objects to get the values from
+	 * @param parallel true to extract the values concurrently (only worth it for large lists with expensive getters)
+	 * @return an array containing a column for each attribute (in the order of {@link #getAttributes()}), with the value of each object at its index in the list
+	 * @throws RuntimeException the first exception thrown by a getter, the extraction is aborted
+	 */
+	public Object[][] getColumns(List<?> objects, boolean parallel){
+		final Object[] source = objects.toArray();
+		final MethodHandle[] getters = accessors.getters;
+		final Object[][] columns = new Object[getters.length][source.length];
+		forEachRange(source.length, parallel, new RangeAction() {
+			@Override
+			public void run(int from, int to) {
+				for(int i = from; i < to; i++){
+					for(int a = 0; a < getters.length; a++){
+						try {
+							columns[a][i] = (Object) getters[a].invokeExact(source[i]);
+						} catch (RuntimeException | Error e) {
+							throw e;
+						} catch (Throwable e) {
+							throw accessFailed("get", a, e);
+						}
 					}
 				}
-		    }
-		}
-		
-		List<String> allFields = new ArrayList<String>();
-		if(fieldMustExist){
-			for(Field field : ReflectionUtil.getAllFieldsInHierarchy(clazz)){
-				allFields.add(StringUtil.setCapitalizedAt(field.getName(), 0, false));
 			}
+		});
+		return columns;
+	}
+
+	private interface RangeAction {
+		public void run(int from, int to);
+	}
+
+	private static void forEachRange(int size, boolean parallel, final RangeAction action){
+		if(!parallel || size <= PARALLEL_CHUNK_SIZE){
+			action.run(0, size);
+		}else{
+			ForkJoinPool.commonPool().invoke(new RangeTask(action, 0, size));
 		}
-		
-		for(String attributeName : getters.keySet()){
-			if(setters.containsKey(attributeName, attributeTypes.get(attributeName))){
-				if(!fieldMustExist || allFields.contains(attributeName)){
-					attributes.add(attributeName);
-					getters.get(attributeName).setAccessible(true);
-					setters.get(attributeName, attributeTypes.get(attributeName)).setAccessible(true);
-				}
+	}
+
+	private static class RangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final RangeAction action;
+		private final int from;
+		private final int to;
+
+		private RangeTask(RangeAction action, int from, int to){
+			this.action = action;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= PARALLEL_CHUNK_SIZE){
+				action.run(from, to);
+			}else{
+				int middle = (from + to) >>> 1;
+				invokeAll(new RangeTask(action, from, middle), new RangeTask(action, middle, to));
 			}
 		}
 	}
-	
-	public String[] getAttributes(){
-		return attributes.toArray(new String[attributes.size()]);
+
+	/**
+	 * Gets the value of an attribute whose type can be converted to int (int, short, byte, char or their wrappers) without boxing.
+	 * @param object the object to get the value from
+	 * @param attribute the index of the attribute
+	 * @return the value returned by the getter
+	 */
+	public int getInt(Object object, int attribute){
+		MethodHandle getter = accessors.typedGetter(attribute, int.class);
+		try {
+			return (int) getter.invokeExact(object);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw accessFailed("get", attribute, e);
+		}
 	}
-	
-	public Class<?> getAttributeType(String attribute){
-		return attributeTypes.get(attribute);
+
+	/**
+	 * Gets the value of an attribute whose type can be converted to long without boxing.
+	 * @param object the object to get the value from
+	 * @param attribute the index of the attribute
+	 * @return the value returned by the getter
+	 */
+	public long getLong(Object object, int attribute){
+		MethodHandle getter = accessors.typedGetter(attribute, long.class);
+		try {
+			return (long) getter.invokeExact(object);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw accessFailed("get", attribute, e);
+		}
 	}
-	
-	public Object getValue(Object object, String attribute){
+
+	/**
+	 * Gets the value of an attribute whose type can be converted to double (any numeric primitive or wrapper) without boxing.
+	 * @param object the object to get the value from
+	 * @param attribute the index of the attribute
+	 * @return the value returned by the getter
+	 */
+	public double getDouble(Object object, int attribute){
+		MethodHandle getter = accessors.typedGetter(attribute, double.class);
 		try {
-			return getters.get(attribute).invoke(object);
-		} catch (Exception e) {
-			// should not happen
-			e.printStackTrace();
-			return null;
+			return (double) getter.invokeExact(object);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw accessFailed("get", attribute, e);
 		}
 	}
-	
-	public void setValue(Object object, String attribute, Object value){
+
+	/**
+	 * Gets the value of a boolean attribute without boxing.
+	 * @param object the object to get the value from
+	 * @param attribute the index of the attribute
+	 * @return the value returned by the getter
+	 */
+	public boolean getBoolean(Object object, int attribute){
+		MethodHandle getter = accessors.typedGetter(attribute, boolean.class);
 		try {
-			setters.get(attribute, attributeTypes.get(attribute)).invoke(object, value);
-		} catch (Exception e) {
-			// should not happen
-			e.printStackTrace();
+			return (boolean) getter.invokeExact(object);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw accessFailed("get", attribute, e);
+		}
+	}
+
+	/**
+	 * Sets the value of an attribute that accepts an int without boxing.
+	 * @param object the object to set the value on
+	 * @param attribute the index of the attribute
+	 * @param value the value to pass to the setter
+	 */
+	public void setInt(Object object, int attribute, int value){
+		MethodHandle setter = accessors.typedSetter(attribute, int.class);
+		try {
+			setter.invokeExact(object, value);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw accessFailed("set", attribute, e);
+		}
+	}
+
+	/**
+	 * Sets the value of an attribute that accepts a long without boxing.
+	 * @param object the object to set the value on
+	 * @param attribute the index of the attribute
+	 * @param value the value to pass to the setter
+	 */
+	public void setLong(Object object, int attribute, long value){
+		MethodHandle setter = accessors.typedSetter(attribute, long.class);
+		try {
+			setter.invokeExact(object, value);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw accessFailed("set", attribute, e);
+		}
+	}
+
+	/**
+	 * Sets the value of an attribute that accepts a double without boxing.
+	 * @param object the object to set the value on
+	 * @param attribute the index of the attribute
+	 * @param value the value to pass to the setter
+	 */
+	public void setDouble(Object object, int attribute, double value){
+		MethodHandle setter = accessors.typedSetter(attribute, double.class);
+		try {
+			setter.invokeExact(object, value);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw accessFailed("set", attribute, e);
+		}
+	}
+
+	/**
+	 * Sets the value of a boolean attribute without boxing.
+	 * @param object the object to set the value on
+	 * @param attribute the index of the attribute
+	 * @param value the value to pass to the setter
+	 */
+	public void setBoolean(Object object, int attribute, boolean value){
+		MethodHandle setter = accessors.typedSetter(attribute, boolean.class);
+		try {
+			setter.invokeExact(object, value);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw accessFailed("set", attribute, e);
+		}
+	}
+
+	/**
+	 * The resolved attributes of one class, shared by all accesses to that class.
+	 */
+	private static class Accessors {
+
+		private static final Class<?>[] TYPED = {int.class, long.class, double.class, boolean.class};
+
+		private final String[] attributes;
+		private final Class<?>[] types;
+		private final Map<String, Integer> indices = new HashMap<String, Integer>();
+		// the return types of all getters and the getters that are not part of an attribute, only accessed by name
+		private final Map<String, Class<?>> getterTypes;
+		private final Map<String, MethodHandle> readOnlyGetters = new HashMap<String, MethodHandle>();
+		private final MethodHandle[] getters;
+		private final MethodHandle[] setters;
+
+		// the handles with the exact types of the methods, used to derive the typed ones
+		private final MethodHandle[] exactGetters;
+		private final MethodHandle[] exactSetters;
+
+		// per attribute and primitive type (see TYPED), created on first use
+		private final MethodHandle[][] typedGetters;
+		private final MethodHandle[][] typedSetters;
+
+		private Accessors(Class<?> clazz, boolean fieldMustExist){
+			Map<String, Method> getters = new HashMap<String, Method>();
+			Map<String, Class<?>> attributeTypes = new HashMap<String, Class<?>>();
+			Map<String, List<Method>> setters = new HashMap<String, List<Method>>();
+			for(Method method : ReflectionUtil.getAllMethodsInHierarchy(clazz)){
+			    if(Modifier.isPublic(method.getModifiers())) {
+					String name = method.getName();
+
+					Matcher getterMatcher = GETTER_PATTERN.matcher(name);
+					if(getterMatcher.matches() && method.getParameterTypes().length == 0 && method.getReturnType() != null){
+						String attributeName = getterMatcher.group(2);
+						if(!attributeName.isEmpty()){
+							attributeName = StringUtil.setCapitalizedAt(attributeName, 0, false);
+							getters.put(attributeName, method);
+							attributeTypes.put(attributeName, method.getReturnType());
+						}
+						continue;
+					}
+
+					Matcher setterMatcher = SETTER_PATTERN.matcher(name);
+					if(setterMatcher.matches() && method.getParameterTypes().length == 1){
+						String attributeName = setterMatcher.group(2);
+						if(!attributeName.isEmpty()){
+							attributeName = StringUtil.setCapitalizedAt(attributeName, 0, false);
+							List<Method> overloads = setters.get(attributeName);
+							if(overloads == null){
+								overloads = new ArrayList<Method>();
+								setters.put(attributeName, overloads);
+							}
+							overloads.add(method);
+						}
+					}
+			    }
+			}
+
+			List<String> allFields = new ArrayList<String>();
+			if(fieldMustExist){
+				for(Field field : ReflectionUtil.getAllFieldsInHierarchy(clazz)){
+					allFields.add(StringUtil.setCapitalizedAt(field.getName(), 0, false));
+				}
+			}
+
+			List<String> attributes = new ArrayList<String>();
+			List<MethodHandle> getterHandles = new ArrayList<MethodHandle>();
+			List<MethodHandle> setterHandles = new ArrayList<MethodHandle>();
+			for(String attributeName : getters.keySet()){
+				Method getter = getters.get(attributeName);
+				Method setter = findSetter(setters.get(attributeName), attributeTypes.get(attributeName));
+				try {
+					getter.setAccessible(true);
+					if(setter != null && (!fieldMustExist || allFields.contains(attributeName))){
+						setter.setAccessible(true);
+						MethodHandle setterHandle = LOOKUP.unreflect(setter);
+						getterHandles.add(LOOKUP.unreflect(getter));
+						setterHandles.add(setterHandle);
+						attributes.add(attributeName);
+					}else{
+						readOnlyGetters.put(attributeName, LOOKUP.unreflect(getter).asType(GETTER_TYPE));
+					}
+				} catch (RuntimeException e) {
+					// not accessible (e.g. declared by a class in a module that is not open), skip the attribute
+				} catch (IllegalAccessException e) {
+					// same as above
+				}
+			}
+			this.getterTypes = attributeTypes;
+
+			this.attributes = attributes.toArray(new String[attributes.size()]);
+			this.types = new Class<?>[this.attributes.length];
+			for(int i = 0; i < this.attributes.length; i++){
+				indices.put(this.attributes[i], i);
+				types[i] = attributeTypes.get(this.attributes[i]);
+			}
+			this.exactGetters = getterHandles.toArray(new MethodHandle[getterHandles.size()]);
+			this.exactSetters = setterHandles.toArray(new MethodHandle[setterHandles.size()]);
+			this.getters = new MethodHandle[this.attributes.length];
+			this.setters = new MethodHandle[this.attributes.length];
+			for(int i = 0; i < this.attributes.length; i++){
+				this.getters[i] = exactGetters[i].asType(GETTER_TYPE);
+				this.setters[i] = exactSetters[i].asType(SETTER_TYPE);
+			}
+			this.typedGetters = new MethodHandle[this.attributes.length][TYPED.length];
+			this.typedSetters = new MethodHandle[this.attributes.length][TYPED.length];
+		}
+
+		private static Method findSetter(List<Method> overloads, Class<?> type){
+			if(overloads != null){
+				for(Method setter : overloads){
+					if(setter.getParameterTypes()[0] == type){
+						return setter;
+					}
+				}
+			}
+			return null;
+		}
+
+		private static int typedIndex(Class<?> primitive){
+			for(int i = 0; i < TYPED.length; i++){
+				if(TYPED[i] == primitive) return i;
+			}
+			throw new IllegalArgumentException(primitive + " is not supported.");
+		}
+
+		/**
+		 * @return the getter of the given attribute, adapted to return the given primitive type
+		 * @throws IllegalArgumentException if the type of the attribute cannot be converted to the given primitive
+		 */
+		private MethodHandle typedGetter(int attribute, Class<?> primitive){
+			int typed = typedIndex(primitive);
+			MethodHandle getter = typedGetters[attribute][typed];
+			if(getter == null){
+				// races are harmless, the handles are equivalent
+				try {
+					getter = exactGetters[attribute].asType(MethodType.methodType(primitive, Object.class));
+				} catch (WrongMethodTypeException e) {
+					throw new IllegalArgumentException("Attribute " + attributes[attribute] + " of type " + types[attribute].getName() + " cannot be read as " + primitive, e);
+				}
+				typedGetters[attribute][typed] = getter;
+			}
+			return getter;
+		}
+
+		/**
+		 * @return the setter of the given attribute, adapted to accept the given primitive type
+		 * @throws IllegalArgumentException if the given primitive cannot be converted to the type of the attribute
+		 */
+		private MethodHandle typedSetter(int attribute, Class<?> primitive){
+			int typed = typedIndex(primitive);
+			MethodHandle setter = typedSetters[attribute][typed];
+			if(setter == null){
+				try {
+					setter = exactSetters[attribute].asType(MethodType.methodType(void.class, Object.class, primitive));
+				} catch (WrongMethodTypeException e) {
+					throw new IllegalArgumentException("Attribute " + attributes[attribute] + " of type " + types[attribute].getName() + " cannot be set from " + primitive, e);
+				}
+				typedSetters[attribute][typed] = setter;
+			}
+			return setter;
 		}
-		
 	}
-	
+
 }
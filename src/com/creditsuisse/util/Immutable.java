@@ -0,0 +1,18 @@
+package com.creditsuisse.util;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class whose instances never change after construction.
+ * <br/>The {@link Cloner} shares instances of such classes instead of copying them.
+ * <br/>This is not inherited, subclasses have to be marked themselves.
+ * @see Cloner#registerImmutable(Class)
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Immutable {
+
+}
@@ -0,0 +1,201 @@
+package com.creditsuisse.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * An {@link ObjectCodec} that streams objects as UTF-8 JSON using the GSON library.
+ * <br/>The JSON is never held in memory as a whole.
+ * Each value is followed by a line break, reading stops there so that other data may follow in the same stream.
+ */
+public class JsonCodec implements ObjectCodec {
+
+	/**
+	 * Writes JSON without any whitespace.
+	 */
+	public static final JsonCodec COMPACT = new JsonCodec(new Gson());
+	/**
+	 * Writes indented JSON.
+	 */
+	public static final JsonCodec PRETTY = new JsonCodec(new GsonBuilder().setPrettyPrinting().create());
+
+	// Gson instances are thread safe and cache their type adapters, so they should be shared
+	private final Gson gson;
+
+	/**
+	 * @param gson the configured Gson instance to use for reading and writing
+	 */
+	public JsonCodec(Gson gson){
+		this.gson = gson;
+	}
+
+	@Override
+	public <T> T read(InputStream in, Class<T> type) throws IOException {
+		// the decoder reads ahead, so it is only given the bytes of this value
+		JsonReader reader = gson.newJsonReader(new InputStreamReader(new ValueInputStream(in), StandardCharsets.UTF_8));
+		try{
+			return gson.fromJson(reader, type);
+		}catch(JsonParseException e){
+			throw new IOException("Invalid JSON for " + type.getName(), e);
+		}
+	}
+
+	@Override
+	public void write(OutputStream out, Object value, Class<?> type) throws IOException {
+		JsonWriter writer = gson.newJsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		if(value == null){
+			writer.nullValue();
+		}else{
+			// the runtime class, so fields of subclasses are written as well
+			gson.toJson(value, value.getClass(), writer);
+		}
+		writer.flush();
+		out.write('\n');
+		out.flush();
+	}
+
+	/**
+	 * Passes the bytes of a single JSON value and consumes the whitespace that ends it.
+	 * <br/>If the given stream supports {@link InputStream#mark(int)}, it is read in blocks and reset to the end of the value,
+	 * otherwise it is read one byte at a time.
+	 * The structure can be followed byte by byte because multi-byte UTF-8 characters never contain ASCII bytes.
+	 */
+	private static class ValueInputStream extends InputStream {
+
+		private static final int PASS = 0;
+		// the byte is part of the value which ends with it, an object, array or string followed by a line break
+		private static final int CLOSE = 1;
+		// the byte is whitespace after a number or literal, which have no closing character
+		private static final int END = 2;
+
+		private final InputStream in;
+		private int depth;
+		private int quote;
+		private boolean escaped;
+		private boolean started;
+		private boolean done;
+
+		ValueInputStream(InputStream in){
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(done){
+				return -1;
+			}
+			int b = in.read();
+			if(b == -1){
+				done = true;
+				return -1;
+			}
+			switch(scan(b)){
+			case CLOSE:
+				skipLineBreak();
+				return b;
+			case END:
+				done = true;
+				return -1;
+			default:
+				return b;
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(!in.markSupported()){
+				return super.read(b, off, len);
+			}
+			if(done){
+				return -1;
+			}
+			if(len == 0){
+				return 0;
+			}
+			in.mark(len);
+			int count = in.read(b, off, len);
+			if(count == -1){
+				done = true;
+				return -1;
+			}
+			for(int i = 0; i < count; i++){
+				int state = scan(b[off + i] & 0xFF);
+				if(state != PASS){
+					in.reset();
+					skipFully(i + 1);
+					if(state == CLOSE){
+						skipLineBreak();
+						return i + 1;
+					}
+					done = true;
+					return i == 0 ? -1 : i;
+				}
+			}
+			return count;
+		}
+
+		private int scan(int b){
+			if(quote != 0){
+				if(escaped){
+					escaped = false;
+				}else if(b == '\\'){
+					escaped = true;
+				}else if(b == quote){
+					quote = 0;
+					return depth == 0 ? CLOSE : PASS;
+				}
+			}else if(b == '{' || b == '['){
+				depth++;
+				started = true;
+			}else if(b == '}' || b == ']'){
+				depth--;
+				return depth == 0 ? CLOSE : PASS;
+			}else if(b == '"' || b == '\''){
+				quote = b;
+				started = true;
+			}else if(isWhitespace(b) || b == ',' || b == ':'){
+				if(started && depth == 0){
+					return END;
+				}
+			}else{
+				started = true;
+			}
+			return PASS;
+		}
+
+		private void skipLineBreak() throws IOException {
+			int next = in.read();
+			if(next != -1 && !isWhitespace(next)){
+				throw new IOException("Unexpected data after JSON value: " + (char) next);
+			}
+			done = true;
+		}
+
+		private void skipFully(long n) throws IOException {
+			while(n > 0){
+				long skipped = in.skip(n);
+				if(skipped <= 0){
+					throw new EOFException("Stream ended after it was reset");
+				}
+				n -= skipped;
+			}
+		}
+
+		private static boolean isWhitespace(int b){
+			return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+		}
+
+	}
+
+}
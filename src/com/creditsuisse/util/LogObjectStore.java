@@ -0,0 +1,576 @@
+package com.creditsuisse.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Stores many objects by key in a single file, a companion to the {@link ObjectStore} for large amounts of small objects.
+ * <br/>The file is an append only log: every put or remove appends a record, nothing is ever rewritten in place.
+ * An in-memory index maps each key to its latest record, so reads only load and deserialize the requested object.
+ * Batched writes ({@link #putAll(Map)}, {@link #removeAll(Collection)}) are appended with a single write.
+ * <br/>Once more than half of the file is taken by outdated records, the live records are copied to a new file in the background
+ * (compaction) which then atomically replaces the log. Reads and writes continue during compaction.
+ * <br/>Every record has a checksum, an incomplete record at the end of the file (from a crash during a write) is dropped on open,
+ * a corrupted record before the end is skipped.
+ * <br/>Keys can be strings or longs, values are written with an {@link ObjectCodec} ({@link BinaryCodec} by default).
+ * @param <K> the type of the keys, {@link String} or {@link Long}
+ * @param <V> the type of the values
+ */
+public class LogObjectStore<K, V> implements AutoCloseable {
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	// length, operation (at the start) and checksum (at the end) of a record
+	private static final int HEADER_SIZE = 4 + 1;
+	private static final int TRAILER_SIZE = 4;
+	private static final int MAX_RECORD_SIZE = Integer.MAX_VALUE - HEADER_SIZE - TRAILER_SIZE;
+
+	// compaction is not worth it for small files
+	private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+	private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "LogObjectStore Compactor");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final Class<K> keyType;
+	private final Class<V> valueType;
+	private final File location;
+	private final ObjectCodec codec;
+
+	// guards the index and the channel, positional reads may run concurrently
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private Map<K, Record> index = new HashMap<K, Record>();
+	private FileChannel channel;
+	private long end;
+	// the bytes of all records that are not referenced by the index
+	private long garbage;
+
+	// set while a background compaction is queued or running, so at most one is queued at a time
+	private final AtomicBoolean compacting = new AtomicBoolean();
+	private final Object compactionLock = new Object();
+	private volatile boolean syncOnWrite = false;
+	private boolean closed = false;
+
+	/**
+	 * Opens the store in the given file (creates it if it does not exist), using the {@link BinaryCodec}.
+	 * @param keyType the type of the keys, {@link String} or {@link Long}
+	 * @param valueType the type of the values
+	 * @param location the log file
+	 */
+	public LogObjectStore(Class<K> keyType, Class<V> valueType, File location){
+		this(keyType, valueType, location, new BinaryCodec());
+	}
+
+	/**
+	 * Opens the store in the given file (creates it if it does not exist).
+	 * @param keyType the type of the keys, {@link String} or {@link Long}
+	 * @param valueType the type of the values
+	 * @param location the log file
+	 * @param codec the codec the values are written with
+	 */
+	public LogObjectStore(Class<K> keyType, Class<V> valueType, File location, ObjectCodec codec){
+		if(keyType != String.class && keyType != Long.class) throw new IllegalArgumentException("Keys must be strings or longs: " + keyType.getName());
+		this.keyType = keyType;
+		this.valueType = valueType;
+		this.location = location;
+		this.codec = codec;
+		try{
+			location.getAbsoluteFile().getParentFile().mkdirs();
+			channel = FileChannel.open(location.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			load();
+		}catch(IOException e){
+			throw new RuntimeException("Failed to open log store: " + location.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Reads all records to build the index, drops an incomplete or corrupted tail.
+	 * <br/>A corrupted record followed by other records is skipped, its length is used to find the next one.
+	 */
+	private void load() throws IOException {
+		long size = channel.size();
+		long position = 0;
+		long valid = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while(position < size){
+			int length = readRecordLength(channel, position, header);
+			if(length < 0 || position + HEADER_SIZE + length + TRAILER_SIZE > size) break;
+			ByteBuffer record = readFully(channel, position, HEADER_SIZE + length + TRAILER_SIZE);
+			if(isValid(record)){
+				if(valid < position){
+					System.err.println("Skipped corrupted records of log store " + location.getAbsolutePath() + " from " + valid + " to " + position);
+				}
+				apply(index, decodeKey(record), record.get(4), new Record(position, record.capacity()));
+				valid = position + record.capacity();
+			}
+			position += record.capacity();
+		}
+		if(valid < size){
+			// the tail was not written completely, the records before it are still fine
+			channel.truncate(valid);
+			channel.force(true);
+		}
+		end = valid;
+		long live = 0;
+		for(Record record : index.values()){
+			live += record.length;
+		}
+		garbage = end - live;
+	}
+
+	/**
+	 * Applies a record to an index and returns the number of bytes that became garbage.
+	 */
+	private static <K> long apply(Map<K, Record> index, K key, byte operation, Record record){
+		Record previous = operation == PUT ? index.put(key, record) : index.remove(key);
+		// a remove record itself is garbage as soon as it is written, but it has to stay until compaction
+		return (previous != null ? previous.length : 0) + (operation == REMOVE ? record.length : 0);
+	}
+
+	/**
+	 * @param syncOnWrite true to force every write to the disk before it returns, false to leave that to the OS (or {@link #sync()})
+	 */
+	public void setSyncOnWrite(boolean syncOnWrite){
+		this.syncOnWrite = syncOnWrite;
+	}
+
+	public boolean isSyncOnWrite(){
+		return syncOnWrite;
+	}
+
+	/**
+	 * Loads the value stored for the given key, only that value is deserialized.
+	 * @param key the key
+	 * @return the value or null if there is none
+	 */
+	public V get(K key){
+		ByteBuffer record;
+		lock.readLock().lock();
+		try{
+			checkOpen();
+			Record entry = index.get(key);
+			if(entry == null) return null;
+			record = readFully(channel, entry.offset, entry.length);
+		}catch(IOException e){
+			throw new RuntimeException("Failed to read from log store: " + location.getAbsolutePath(), e);
+		}finally{
+			lock.readLock().unlock();
+		}
+
+		// deserialized outside of the lock
+		int valueOffset = valueOffset(record);
+		try{
+			return codec.read(new ByteArrayInputStream(record.array(), valueOffset, record.capacity() - TRAILER_SIZE - valueOffset), valueType);
+		}catch(IOException e){
+			throw new RuntimeException("Failed to read " + key + " from log store: " + location.getAbsolutePath(), e);
+		}
+	}
+
+	public V getOrDefault(K key, V defaultValue){
+		V value = get(key);
+		return value == null ? defaultValue : value;
+	}
+
+	public boolean containsKey(K key){
+		lock.readLock().lock();
+		try{
+			return index.containsKey(key);
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return a copy of all keys in this store
+	 */
+	public Set<K> keySet(){
+		lock.readLock().lock();
+		try{
+			return new HashSet<K>(index.keySet());
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	public int size(){
+		lock.readLock().lock();
+		try{
+			return index.size();
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	public void put(K key, V value){
+		putAll(Collections.singletonMap(key, value));
+	}
+
+	/**
+	 * Stores all given values with a single write.
+	 * <br/>The values are serialized before the store is locked, a null value removes its key.
+	 * @param values the values by key
+	 */
+	public void putAll(Map<? extends K, ? extends V> values){
+		List<K> keys = new ArrayList<K>(values.size());
+		List<byte[]> records = new ArrayList<byte[]>(values.size());
+		List<K> removedKeys = new ArrayList<K>();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		for(Map.Entry<? extends K, ? extends V> entry : values.entrySet()){
+			if(entry.getValue() == null){
+				removedKeys.add(checkKey(entry.getKey()));
+			}else{
+				keys.add(checkKey(entry.getKey()));
+				records.add(encode(entry.getKey(), PUT, entry.getValue(), buffer));
+			}
+		}
+		if(!removedKeys.isEmpty()){
+			// like removeAll, keys that do not exist are skipped
+			lock.readLock().lock();
+			try{
+				for(K key : removedKeys){
+					if(index.containsKey(key)){
+						keys.add(key);
+						records.add(encode(key, REMOVE, null, buffer));
+					}
+				}
+			}finally{
+				lock.readLock().unlock();
+			}
+		}
+		append(keys, records);
+	}
+
+	public void remove(K key){
+		removeAll(Collections.singleton(key));
+	}
+
+	/**
+	 * Removes all given keys with a single write.
+	 * @param keys the keys to remove
+	 */
+	public void removeAll(Collection<? extends K> keys){
+		List<K> removedKeys = new ArrayList<K>(keys.size());
+		List<byte[]> records = new ArrayList<byte[]>(keys.size());
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		lock.readLock().lock();
+		try{
+			for(K key : keys){
+				// removing a key that does not exist would only add garbage
+				if(index.containsKey(checkKey(key))){
+					removedKeys.add(key);
+					records.add(encode(key, REMOVE, null, buffer));
+				}
+			}
+		}finally{
+			lock.readLock().unlock();
+		}
+		append(removedKeys, records);
+	}
+
+	private void append(List<K> keys, List<byte[]> records){
+		if(records.isEmpty()) return;
+		ByteBuffer[] buffers = new ByteBuffer[records.size()];
+		long length = 0;
+		for(int i = 0; i < buffers.length; i++){
+			buffers[i] = ByteBuffer.wrap(records.get(i));
+			length += buffers[i].remaining();
+		}
+
+		boolean compact;
+		lock.writeLock().lock();
+		try{
+			checkOpen();
+			long position = end;
+			channel.position(position);
+			long written = 0;
+			while(written < length){
+				written += channel.write(buffers);
+			}
+			if(syncOnWrite) channel.force(false);
+			for(int i = 0; i < buffers.length; i++){
+				Record record = new Record(position, buffers[i].capacity());
+				garbage += apply(index, keys.get(i), records.get(i)[4], record);
+				position += record.length;
+			}
+			end = position;
+			compact = end > MIN_COMPACTION_SIZE && garbage * 2 > end;
+		}catch(IOException e){
+			throw new RuntimeException("Failed to write to log store: " + location.getAbsolutePath(), e);
+		}finally{
+			lock.writeLock().unlock();
+		}
+		if(compact) compactInBackground();
+	}
+
+	/**
+	 * Forces all written records to the disk.
+	 */
+	public void sync(){
+		lock.readLock().lock();
+		try{
+			checkOpen();
+			channel.force(false);
+		}catch(IOException e){
+			throw new RuntimeException("Failed to sync log store: " + location.getAbsolutePath(), e);
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	private void compactInBackground(){
+		if(compacting.compareAndSet(false, true)){
+			COMPACTOR.execute(new Runnable() {
+				@Override
+				public void run() {
+					try{
+						synchronized (compactionLock) {
+							doCompact();
+						}
+					}catch(RuntimeException e){
+						e.printStackTrace();
+					}finally{
+						compacting.set(false);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Rewrites the log so it only contains the live records, blocks until done.
+	 * <br/>This usually happens automatically in the background, but can be useful before archiving the file.
+	 */
+	public void compact(){
+		synchronized (compactionLock) {
+			doCompact();
+		}
+	}
+
+	private void doCompact(){
+		File temp = null;
+		FileChannel newChannel = null;
+		try{
+			temp = FileUtil.createTempFileFor(location);
+			newChannel = FileChannel.open(temp.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+			// copy the live records as of now, writers may continue meanwhile (the old channel is only read positionally)
+			Map<K, Record> snapshot;
+			FileChannel oldChannel;
+			long snapshotEnd;
+			lock.readLock().lock();
+			try{
+				checkOpen();
+				snapshot = new HashMap<K, Record>(index);
+				oldChannel = channel;
+				snapshotEnd = end;
+			}finally{
+				lock.readLock().unlock();
+			}
+			Map<K, Record> newIndex = new HashMap<K, Record>((int) (snapshot.size() / 0.75f) + 1);
+			long position = 0;
+			for(Map.Entry<K, Record> entry : snapshot.entrySet()){
+				Record record = entry.getValue();
+				position += transfer(oldChannel, record.offset, record.length, newChannel, position);
+				newIndex.put(entry.getKey(), new Record(position - record.length, record.length));
+			}
+
+			lock.writeLock().lock();
+			try{
+				checkOpen();
+				// replay what has been written since the snapshot, including removes of copied records
+				long newGarbage = 0;
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				for(long offset = snapshotEnd; offset < end;){
+					int length = HEADER_SIZE + readRecordLength(channel, offset, header) + TRAILER_SIZE;
+					ByteBuffer record = readFully(channel, offset, length);
+					while(record.hasRemaining()){
+						newChannel.write(record, position + record.position());
+					}
+					newGarbage += apply(newIndex, decodeKey(record), record.get(4), new Record(position, length));
+					position += length;
+					offset += length;
+				}
+				newChannel.force(true);
+				try{
+					Files.move(temp.toPath(), location.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				}catch(AtomicMoveNotSupportedException e){
+					Files.move(temp.toPath(), location.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+				temp = null;
+				channel.close();
+				channel = newChannel;
+				newChannel = null;
+				index = newIndex;
+				end = position;
+				garbage = newGarbage;
+			}finally{
+				lock.writeLock().unlock();
+			}
+		}catch(IOException e){
+			throw new RuntimeException("Failed to compact log store: " + location.getAbsolutePath(), e);
+		}finally{
+			if(newChannel != null){
+				try{
+					newChannel.close();
+				}catch(IOException e){
+					e.printStackTrace();
+				}
+			}
+			if(temp != null && !temp.delete()){
+				temp.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Syncs and closes the log, the store cannot be used afterwards.
+	 */
+	@Override
+	public void close(){
+		lock.writeLock().lock();
+		try{
+			if(closed) return;
+			closed = true;
+			channel.force(true);
+			channel.close();
+		}catch(IOException e){
+			throw new RuntimeException("Failed to close log store: " + location.getAbsolutePath(), e);
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void checkOpen(){
+		if(closed) throw new IllegalStateException("Log store has been closed: " + location.getAbsolutePath());
+	}
+
+	private K checkKey(K key){
+		if(key == null) throw new IllegalArgumentException("Keys must not be null.");
+		return key;
+	}
+
+	/**
+	 * Creates a record: length, operation, key, value (only for puts) and the checksum of everything but the length.
+	 */
+	private byte[] encode(K key, byte operation, V value, ByteArrayOutputStream buffer){
+		buffer.reset();
+		try{
+			DataOutputStream out = new DataOutputStream(buffer);
+			out.writeInt(0);
+			out.writeByte(operation);
+			if(keyType == Long.class){
+				out.writeLong((Long) key);
+			}else{
+				byte[] bytes = ((String) key).getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			if(operation == PUT){
+				codec.write(out, value, valueType);
+			}
+			out.writeInt(0);
+		}catch(IOException e){
+			throw new RuntimeException("Failed to serialize " + key + " for log store: " + location.getAbsolutePath(), e);
+		}
+		byte[] record = buffer.toByteArray();
+		if(record.length - HEADER_SIZE - TRAILER_SIZE > MAX_RECORD_SIZE) throw new IllegalArgumentException("Value for " + key + " is too large.");
+		ByteBuffer wrapped = ByteBuffer.wrap(record);
+		wrapped.putInt(0, record.length - HEADER_SIZE - TRAILER_SIZE);
+		wrapped.putInt(record.length - TRAILER_SIZE, checksum(record));
+		return record;
+	}
+
+	private static int checksum(byte[] record){
+		CRC32 crc = new CRC32();
+		crc.update(record, 4, record.length - 4 - TRAILER_SIZE);
+		return (int) crc.getValue();
+	}
+
+	private static boolean isValid(ByteBuffer record){
+		byte operation = record.get(4);
+		return (operation == PUT || operation == REMOVE) && record.getInt(record.capacity() - TRAILER_SIZE) == checksum(record.array());
+	}
+
+	@SuppressWarnings("unchecked")
+	private K decodeKey(ByteBuffer record){
+		if(keyType == Long.class){
+			return (K) (Long) record.getLong(HEADER_SIZE);
+		}
+		int length = record.getInt(HEADER_SIZE);
+		return (K) new String(record.array(), HEADER_SIZE + 4, length, StandardCharsets.UTF_8);
+	}
+
+	private int valueOffset(ByteBuffer record){
+		return keyType == Long.class ? HEADER_SIZE + 8 : HEADER_SIZE + 4 + record.getInt(HEADER_SIZE);
+	}
+
+	private static int readRecordLength(FileChannel channel, long position, ByteBuffer header) throws IOException {
+		header.clear();
+		while(header.hasRemaining()){
+			if(channel.read(header, position + header.position()) < 0) return -1;
+		}
+		return header.getInt(0);
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while(buffer.hasRemaining()){
+			if(channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	private static long transfer(FileChannel source, long position, long length, FileChannel target, long targetPosition) throws IOException {
+		long transferred = 0;
+		while(transferred < length){
+			transferred += source.transferTo(position + transferred, length - transferred, target.position(targetPosition + transferred));
+		}
+		return transferred;
+	}
+
+	/**
+	 * The location of the latest record of a key.
+	 */
+	private static class Record {
+		private final long offset;
+		private final int length;
+
+		private Record(long offset, int length){
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+}
@@ -0,0 +1,400 @@
+package com.creditsuisse.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A read only store for large collections of flat objects, backed by a memory mapped file.
+ * <br/>Every object is stored as a fixed size record, the layout is derived from the fields of the class (see {@link ClonePlan}).
+ * Opening a store only maps the file, nothing is read until it is accessed, so the heap usage does not depend on the size of the file.
+ * <br/>Records can either be materialized as objects ({@link #get(int)}, {@link #asList()}) or read field by field without
+ * creating any objects ({@link #getDouble(int, int)} etc.).
+ * <br/>Only classes whose (non transient) fields are all primitives or enums are supported.
+ * The file is created with {@link #write(File, Class, Collection)} and can only be read with the same version of the class
+ * (and of the enums of its fields, which are stored by ordinal).
+ * @param <T> the type of the stored objects
+ */
+public class MappedObjectStore<T> implements AutoCloseable {
+
+	private static final int MAGIC = 0x47554D53;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+	private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+	private final Schema schema;
+	private final int size;
+	// the file is mapped in segments of whole records, a single mapping cannot be larger than 2GB
+	private final int recordsPerSegment;
+	private final ByteBuffer[] segments;
+	private FileChannel channel;
+
+	/**
+	 * Maps the given file, which must have been written by {@link #write(File, Class, Collection)} for the same class.
+	 * @param type the type of the stored objects
+	 * @param location the file to map
+	 */
+	public MappedObjectStore(Class<T> type, File location){
+		this.schema = Schema.of(type);
+		try{
+			channel = FileChannel.open(location.toPath(), StandardOpenOption.READ);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+			while(header.hasRemaining()){
+				if(channel.read(header, header.position()) < 0) throw new IOException("File is too short.");
+			}
+			if(header.getInt(0) != MAGIC) throw new IOException("Not a mapped object store.");
+			if(header.getInt(4) != VERSION) throw new IOException("Unsupported version: " + header.getInt(4));
+			if(header.getLong(8) != schema.hash || header.getInt(16) != schema.recordSize){
+				throw new IOException("The file was written for a different version of " + type.getName());
+			}
+			long count = header.getLong(20);
+			if(count < 0 || count > Integer.MAX_VALUE || HEADER_SIZE + count * schema.recordSize > channel.size()){
+				throw new IOException("Invalid record count: " + count);
+			}
+			size = (int) count;
+
+			recordsPerSegment = Math.max(1, Integer.MAX_VALUE / Math.max(1, schema.recordSize));
+			int segmentCount = size == 0 ? 0 : (size - 1) / recordsPerSegment + 1;
+			segments = new ByteBuffer[segmentCount];
+			for(int i = 0; i < segmentCount; i++){
+				long first = (long) i * recordsPerSegment;
+				long records = Math.min(recordsPerSegment, size - first);
+				MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * schema.recordSize, records * schema.recordSize);
+				segments[i] = segment.order(ORDER);
+			}
+		}catch(IOException e){
+			close();
+			throw new RuntimeException("Failed to open mapped store: " + location.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Writes the given objects to the given file, replacing it atomically.
+	 * @param location the file to write
+	 * @param type the type of the objects
+	 * @param values the objects to write, null elements are not allowed
+	 */
+	public static <T> void write(File location, Class<T> type, Collection<? extends T> values){
+		Schema schema = Schema.of(type);
+		File directory = location.getAbsoluteFile().getParentFile();
+		File temp = null;
+		try{
+			directory.mkdirs();
+			temp = FileUtil.createTempFileFor(location);
+			try(FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)){
+				ByteBuffer buffer = ByteBuffer.allocate(Math.max(WRITE_BUFFER_SIZE, HEADER_SIZE + schema.recordSize)).order(ORDER);
+				buffer.putInt(MAGIC).putInt(VERSION).putLong(schema.hash).putInt(schema.recordSize).putLong(values.size());
+				buffer.position(HEADER_SIZE);
+				int count = 0;
+				for(T value : values){
+					if(value == null) throw new IllegalArgumentException("Null values cannot be stored.");
+					if(buffer.remaining() < schema.recordSize){
+						writeFully(out, buffer);
+					}
+					schema.write(value, buffer);
+					count++;
+				}
+				if(count != values.size()) throw new IllegalStateException("The collection has been modified while writing.");
+				writeFully(out, buffer);
+				out.force(true);
+			}
+			try{
+				Files.move(temp.toPath(), location.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}catch(AtomicMoveNotSupportedException e){
+				Files.move(temp.toPath(), location.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			temp = null;
+		}catch(IOException e){
+			throw new RuntimeException("Failed to write mapped store: " + location.getAbsolutePath(), e);
+		}finally{
+			if(temp != null && !temp.delete()){
+				temp.deleteOnExit();
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()){
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * @return the amount of stored objects
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Creates a new object from the record at the given index.
+	 * @param index the index of the record
+	 * @return the materialized object, changing it does not affect the store
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int index){
+		ByteBuffer segment = segmentOf(index);
+		return (T) schema.read(segment, offsetOf(index));
+	}
+
+	/**
+	 * @return a read only list view of the store, elements are materialized on every access
+	 */
+	public List<T> asList(){
+		return new RecordList();
+	}
+
+	/**
+	 * @return the amount of fields of each record
+	 */
+	public int getFieldCount(){
+		return schema.fields.length;
+	}
+
+	/**
+	 * @param name the name of a field
+	 * @return the index of the field with the given name, to be used for the typed getters
+	 */
+	public int getFieldIndex(String name){
+		for(int i = 0; i < schema.fields.length; i++){
+			if(schema.fields[i].getName().equals(name)) return i;
+		}
+		throw new IllegalArgumentException("No field " + name + " in " + schema.type.getName());
+	}
+
+	public Class<?> getFieldType(int field){
+		return schema.fields[field].getType();
+	}
+
+	public boolean getBoolean(int index, int field){
+		return segmentOf(index).get(offsetOf(index, field, boolean.class)) != 0;
+	}
+
+	public byte getByte(int index, int field){
+		return segmentOf(index).get(offsetOf(index, field, byte.class));
+	}
+
+	public char getChar(int index, int field){
+		return segmentOf(index).getChar(offsetOf(index, field, char.class));
+	}
+
+	public short getShort(int index, int field){
+		return segmentOf(index).getShort(offsetOf(index, field, short.class));
+	}
+
+	public int getInt(int index, int field){
+		return segmentOf(index).getInt(offsetOf(index, field, int.class));
+	}
+
+	public long getLong(int index, int field){
+		return segmentOf(index).getLong(offsetOf(index, field, long.class));
+	}
+
+	public float getFloat(int index, int field){
+		return segmentOf(index).getFloat(offsetOf(index, field, float.class));
+	}
+
+	public double getDouble(int index, int field){
+		return segmentOf(index).getDouble(offsetOf(index, field, double.class));
+	}
+
+	/**
+	 * @return the constant of an enum field, or null
+	 */
+	public Enum<?> getEnum(int index, int field){
+		if(schema.enumConstants[field] == null) throw new IllegalArgumentException("Field " + schema.fields[field].getName() + " is not an enum.");
+		int ordinal = segmentOf(index).getInt(offsetOf(index) + schema.offsets[field]);
+		return ordinal < 0 ? null : (Enum<?>) schema.enumConstants[field][ordinal];
+	}
+
+	private ByteBuffer segmentOf(int index){
+		if(index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		return segments[index / recordsPerSegment];
+	}
+
+	private int offsetOf(int index){
+		return (index % recordsPerSegment) * schema.recordSize;
+	}
+
+	private int offsetOf(int index, int field, Class<?> expectedType){
+		if(schema.fields[field].getType() != expectedType){
+			throw new IllegalArgumentException("Field " + schema.fields[field].getName() + " is not of type " + expectedType.getName());
+		}
+		return offsetOf(index) + schema.offsets[field];
+	}
+
+	/**
+	 * Closes the file. The mapping itself is released by the garbage collector once the store is no longer referenced.
+	 */
+	@Override
+	public void close(){
+		if(channel != null){
+			try{
+				channel.close();
+			}catch(IOException e){
+				e.printStackTrace();
+			}
+			channel = null;
+		}
+	}
+
+	private class RecordList extends AbstractList<T> implements RandomAccess {
+
+		@Override
+		public T get(int index) {
+			return MappedObjectStore.this.get(index);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * The record layout of one class, the fields are laid out in the order of the {@link ClonePlan}.
+	 */
+	private static class Schema {
+
+		private static final ClassValue<Schema> SCHEMAS = new ClassValue<Schema>() {
+			@Override
+			protected Schema computeValue(Class<?> type) {
+				return new Schema(type);
+			}
+		};
+
+		private final Class<?> type;
+		private final ClonePlan plan;
+		// the fields that are stored, their indices in the plan and their offsets within a record
+		private final Field[] fields;
+		private final int[] planIndices;
+		private final int[] offsets;
+		// the constants of enum fields (by field), null for primitive fields
+		private final Object[][] enumConstants;
+		private final int recordSize;
+		// identifies the layout, so a file cannot be read with a different version of the class
+		private final long hash;
+
+		private static Schema of(Class<?> type){
+			return SCHEMAS.get(type);
+		}
+
+		private Schema(Class<?> type){
+			if(type.isArray() || type.isInterface() || Modifier.isAbstract(type.getModifiers())){
+				throw new IllegalArgumentException("Only concrete classes can be stored: " + type.getName());
+			}
+			for(Field field : ReflectionUtil.getAllFieldsInHierarchy(type)){
+				if(!Modifier.isTransient(field.getModifiers()) && !field.getType().isPrimitive() && !field.getType().isEnum()){
+					throw new IllegalArgumentException("Only primitive and enum fields can be stored, " + field + " is neither.");
+				}
+			}
+			this.type = type;
+			this.plan = ClonePlan.of(type);
+			List<Integer> stored = new ArrayList<Integer>();
+			for(int i = 0; i < plan.getFieldCount(); i++){
+				if(!Modifier.isTransient(plan.getField(i).getModifiers())){
+					stored.add(i);
+				}
+			}
+			fields = new Field[stored.size()];
+			planIndices = new int[stored.size()];
+			offsets = new int[stored.size()];
+			enumConstants = new Object[stored.size()][];
+			int offset = 0;
+			long hash = type.getName().hashCode();
+			for(int i = 0; i < fields.length; i++){
+				planIndices[i] = stored.get(i);
+				fields[i] = plan.getField(planIndices[i]);
+				offsets[i] = offset;
+				enumConstants[i] = fields[i].getType().getEnumConstants();
+				offset += sizeOf(fields[i].getType());
+				hash = hash * 31 + fields[i].getName().hashCode();
+				hash = hash * 31 + fields[i].getType().getName().hashCode();
+				if(enumConstants[i] != null){
+					// enums are stored by ordinal, so their constants are part of the layout
+					for(Object constant : enumConstants[i]){
+						hash = hash * 31 + ((Enum<?>) constant).name().hashCode();
+					}
+				}
+			}
+			recordSize = offset;
+			this.hash = hash;
+		}
+
+		private static int sizeOf(Class<?> type){
+			if(type == long.class || type == double.class) return 8;
+			if(type == int.class || type == float.class || type.isEnum()) return 4;
+			if(type == short.class || type == char.class) return 2;
+			return 1;
+		}
+
+		private void write(Object value, ByteBuffer buffer){
+			try{
+				for(int i = 0; i < fields.length; i++){
+					Object fieldValue = plan.getFieldValue(value, planIndices[i]);
+					Class<?> fieldType = fields[i].getType();
+					if(fieldType == int.class) buffer.putInt((Integer) fieldValue);
+					else if(fieldType == double.class) buffer.putDouble((Double) fieldValue);
+					else if(fieldType == long.class) buffer.putLong((Long) fieldValue);
+					else if(fieldType == float.class) buffer.putFloat((Float) fieldValue);
+					else if(fieldType == boolean.class) buffer.put((byte) ((Boolean) fieldValue ? 1 : 0));
+					else if(fieldType == byte.class) buffer.put((Byte) fieldValue);
+					else if(fieldType == short.class) buffer.putShort((Short) fieldValue);
+					else if(fieldType == char.class) buffer.putChar((Character) fieldValue);
+					else buffer.putInt(fieldValue == null ? -1 : ((Enum<?>) fieldValue).ordinal());
+				}
+			}catch(RuntimeException e){
+				throw e;
+			}catch(Throwable e){
+				throw new RuntimeException("Failed to write " + value, e);
+			}
+		}
+
+		private Object read(ByteBuffer buffer, int offset){
+			try{
+				Object object = plan.newInstance();
+				for(int i = 0; i < fields.length; i++){
+					int position = offset + offsets[i];
+					Class<?> fieldType = fields[i].getType();
+					Object fieldValue;
+					if(fieldType == int.class) fieldValue = buffer.getInt(position);
+					else if(fieldType == double.class) fieldValue = buffer.getDouble(position);
+					else if(fieldType == long.class) fieldValue = buffer.getLong(position);
+					else if(fieldType == float.class) fieldValue = buffer.getFloat(position);
+					else if(fieldType == boolean.class) fieldValue = buffer.get(position) != 0;
+					else if(fieldType == byte.class) fieldValue = buffer.get(position);
+					else if(fieldType == short.class) fieldValue = buffer.getShort(position);
+					else if(fieldType == char.class) fieldValue = buffer.getChar(position);
+					else{
+						int ordinal = buffer.getInt(position);
+						fieldValue = ordinal < 0 ? null : enumConstants[i][ordinal];
+					}
+					plan.setFieldValue(object, planIndices[i], fieldValue);
+				}
+				return object;
+			}catch(RuntimeException e){
+				throw e;
+			}catch(Throwable e){
+				throw new RuntimeException("Failed to read " + type.getName(), e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,34 @@
+package com.creditsuisse.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Converts objects from and to a stream of bytes, used by the {@link ObjectStore} to define the format of its file.
+ * <br/>Implementations must be thread safe and must neither close the given streams nor read beyond the data they have written.
+ * @see JsonCodec
+ * @see BinaryCodec
+ * @see DeflateCodec
+ */
+public interface ObjectCodec {
+
+	/**
+	 * Reads an object written by {@link #write(OutputStream, Object, Class)}.
+	 * @param in the stream to read from
+	 * @param type the type the object was written as
+	 * @return the object, may be null
+	 * @throws IOException if the stream cannot be read or does not contain a valid object
+	 */
+	public <T> T read(InputStream in, Class<T> type) throws IOException;
+
+	/**
+	 * Writes the given object.
+	 * @param out the stream to write to, it is flushed but not closed
+	 * @param value the object to write, may be null
+	 * @param type the type the object will be read as
+	 * @throws IOException if the stream cannot be written
+	 */
+	public void write(OutputStream out, Object value, Class<?> type) throws IOException;
+
+}
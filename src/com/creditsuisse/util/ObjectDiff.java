@@ -0,0 +1,371 @@
+package com.creditsuisse.util;
+
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the differences between two versions of an object graph and applies them to another copy of the old version.
+ * <br/>Both graphs are walked in lockstep (without recursion) using the cached field metadata of the {@link Cloner},
+ * only the values that actually changed end up in the resulting {@link Patch}.
+ * <br/>Typical usage is to keep a snapshot made with {@link Cloner#clone(Object, boolean)}, and later only persist or transmit the patch
+ * between that snapshot and the current state.
+ * <br/>Fields are addressed by their index, so a patch can only be applied by the same version of the classes that created it.
+ */
+public class ObjectDiff {
+
+	// if more than this fraction of a primitive array changed, the whole array is replaced
+	private static final float ARRAY_REPLACE_RATIO = 0.5f;
+
+	/**
+	 * Computes the changes needed to turn the old version into the new version.
+	 * @param oldVersion the old version of the graph (usually a snapshot)
+	 * @param newVersion the new version of the graph
+	 * @return the changes, the values in it are copies and do not reference the new version (map keys in the paths are not copied, see {@link MapKey})
+	 */
+	public static Patch diff(Object oldVersion, Object newVersion){
+		List<Change> changes = new ArrayList<Change>();
+		ExactEqualityMap<Object, Object> visited = new ExactEqualityMap<Object, Object>();
+
+		// triples of (old, new, path) that still have to be compared
+		ArrayDeque<Object> pending = new ArrayDeque<Object>();
+		pending.push(Path.ROOT);
+		pending.push(newVersion == null ? Null.INSTANCE : newVersion);
+		pending.push(oldVersion == null ? Null.INSTANCE : oldVersion);
+
+		while(!pending.isEmpty()){
+			Object oldValue = Null.unmask(pending.pop());
+			Object newValue = Null.unmask(pending.pop());
+			Path path = (Path) pending.pop();
+			try{
+				compare(oldValue, newValue, path, changes, visited, pending);
+			}catch(RuntimeException e){
+				throw e;
+			}catch(Throwable e){
+				throw new RuntimeException("Failed to compare " + path, e);
+			}
+		}
+		return new Patch(changes);
+	}
+
+	private static void compare(Object oldValue, Object newValue, Path path, List<Change> changes, ExactEqualityMap<Object, Object> visited, ArrayDeque<Object> pending) throws Throwable {
+		if(oldValue == newValue){
+			return;
+		}else if(oldValue == null || newValue == null || oldValue.getClass() != newValue.getClass()){
+			changes.add(new Change(path, newValue));
+			return;
+		}
+
+		Class<?> type = oldValue.getClass();
+		if(Cloner.isImmutable(type)){
+			if(!oldValue.equals(newValue)){
+				changes.add(new Change(path, newValue));
+			}
+			return;
+		}
+
+		// each pair only has to be compared once, this also stops cycles
+		if(visited.get(oldValue) == newValue){
+			return;
+		}
+		visited.put(oldValue, newValue);
+
+		ClonePlan plan = ClonePlan.of(type);
+		if(plan.isFlatArray()){
+			compareFlatArrays(oldValue, newValue, path, changes);
+		}else if(plan.isArray()){
+			Object[] oldArray = (Object[]) oldValue;
+			Object[] newArray = (Object[]) newValue;
+			if(oldArray.length != newArray.length){
+				changes.add(new Change(path, newValue));
+			}else{
+				for(int i = oldArray.length - 1; i >= 0; i--){
+					push(pending, oldArray[i], newArray[i], path.child(i));
+				}
+			}
+		}else if(oldValue instanceof List && plan.getContainerCloner() != null){
+			List<?> oldList = (List<?>) oldValue;
+			List<?> newList = (List<?>) newValue;
+			if(oldList.size() != newList.size()){
+				changes.add(new Change(path, newValue));
+			}else{
+				Object[] oldElements = oldList.toArray();
+				Object[] newElements = newList.toArray();
+				for(int i = oldElements.length - 1; i >= 0; i--){
+					push(pending, oldElements[i], newElements[i], path.child(i));
+				}
+			}
+		}else if(oldValue instanceof Map && plan.getContainerCloner() != null){
+			Map<?, ?> oldMap = (Map<?, ?>) oldValue;
+			Map<?, ?> newMap = (Map<?, ?>) newValue;
+			if(!oldMap.keySet().equals(newMap.keySet())){
+				changes.add(new Change(path, newValue));
+			}else{
+				for(Map.Entry<?, ?> entry : newMap.entrySet()){
+					push(pending, oldMap.get(entry.getKey()), entry.getValue(), path.child(new MapKey(entry.getKey())));
+				}
+			}
+		}else if(plan.getContainerCloner() != null){
+			// other containers cannot be patched element wise
+			if(!oldValue.equals(newValue)){
+				changes.add(new Change(path, newValue));
+			}
+		}else{
+			for(int i = plan.getFieldCount() - 1; i >= 0; i--){
+				Object oldFieldValue = plan.getFieldValue(oldValue, i);
+				Object newFieldValue = plan.getFieldValue(newValue, i);
+				if(plan.getField(i).getType().isPrimitive()){
+					if(!oldFieldValue.equals(newFieldValue)){
+						changes.add(new Change(path.child(i), newFieldValue));
+					}
+				}else{
+					push(pending, oldFieldValue, newFieldValue, path.child(i));
+				}
+			}
+		}
+	}
+
+	private static void compareFlatArrays(Object oldArray, Object newArray, Path path, List<Change> changes){
+		int length = Array.getLength(oldArray);
+		if(length != Array.getLength(newArray)){
+			changes.add(new Change(path, newArray));
+			return;
+		}
+
+		List<Change> elementChanges = new ArrayList<Change>();
+		int maxChanges = (int) (length * ARRAY_REPLACE_RATIO);
+		for(int i = 0; i < length; i++){
+			Object oldElement = Array.get(oldArray, i);
+			Object newElement = Array.get(newArray, i);
+			if(oldElement == null ? newElement != null : !oldElement.equals(newElement)){
+				if(elementChanges.size() >= maxChanges){
+					changes.add(new Change(path, newArray));
+					return;
+				}
+				elementChanges.add(new Change(path.child(i), newElement));
+			}
+		}
+		changes.addAll(elementChanges);
+	}
+
+	private static void push(ArrayDeque<Object> pending, Object oldValue, Object newValue, Path path){
+		pending.push(path);
+		pending.push(newValue == null ? Null.INSTANCE : newValue);
+		pending.push(oldValue == null ? Null.INSTANCE : oldValue);
+	}
+
+	/**
+	 * Applies the given patch to the target, which has to be structurally equal to the old version the patch was created from.
+	 * <br/>The target is modified in place, unless the patch replaces the root itself.
+	 * @param target the graph to modify
+	 * @param patch the changes to apply
+	 * @return the patched graph, this is the target unless the root has been replaced
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T apply(T target, Patch patch){
+		Object root = target;
+		for(Change change : patch){
+			Object[] steps = change.path;
+			// copy the value, so the same patch can be applied to multiple targets
+			Object value = Cloner.clone(change.value, true);
+			if(steps.length == 0){
+				root = value;
+				continue;
+			}
+			try{
+				Object current = root;
+				for(int i = 0; i < steps.length - 1; i++){
+					current = get(current, steps[i]);
+				}
+				set(current, steps[steps.length - 1], value);
+			}catch(Throwable e){
+				throw new RuntimeException("Failed to apply " + change, e);
+			}
+		}
+		return (T) root;
+	}
+
+	private static Object get(Object object, Object step) throws Throwable {
+		if(step instanceof MapKey){
+			return ((Map<?, ?>) object).get(((MapKey) step).key);
+		}
+		int index = (Integer) step;
+		if(object instanceof List){
+			return ((List<?>) object).get(index);
+		}else if(object.getClass().isArray()){
+			return Array.get(object, index);
+		}else{
+			return ClonePlan.of(object.getClass()).getFieldValue(object, index);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void set(Object object, Object step, Object value) throws Throwable {
+		if(step instanceof MapKey){
+			((Map<Object, Object>) object).put(((MapKey) step).key, value);
+			return;
+		}
+		int index = (Integer) step;
+		if(object instanceof List){
+			((List<Object>) object).set(index, value);
+		}else if(object.getClass().isArray()){
+			Array.set(object, index, value);
+		}else{
+			ClonePlan.of(object.getClass()).setFieldValue(object, index, value);
+		}
+	}
+
+	/**
+	 * The changes between two versions of an object graph, created by {@link ObjectDiff#diff(Object, Object)}.
+	 */
+	public static class Patch implements Iterable<Change>, Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final List<Change> changes;
+
+		private Patch(List<Change> changes){
+			this.changes = Collections.unmodifiableList(changes);
+		}
+
+		/**
+		 * @return the amount of changes
+		 */
+		public int size(){
+			return changes.size();
+		}
+
+		/**
+		 * @return true if both versions were equal
+		 */
+		public boolean isEmpty(){
+			return changes.isEmpty();
+		}
+
+		@Override
+		public Iterator<Change> iterator() {
+			return changes.iterator();
+		}
+
+		@Override
+		public String toString() {
+			return changes.toString();
+		}
+	}
+
+	/**
+	 * A single changed value.
+	 */
+	public static class Change implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		// field indices (objects), element indices (arrays and lists) or map keys, from the root to the changed value
+		private final Object[] path;
+		private final Object value;
+
+		private Change(Path path, Object value){
+			this.path = path.toArray();
+			this.value = Cloner.clone(value, true);
+		}
+
+		/**
+		 * @return the steps from the root to the changed value: field or element indices (Integer) and map keys (as {@link MapKey})
+		 */
+		public Object[] getPath(){
+			return path.clone();
+		}
+
+		/**
+		 * @return the new value
+		 */
+		public Object getValue(){
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder("root");
+			for(Object step : path){
+				builder.append(step instanceof MapKey ? "[" + step + "]" : "." + step);
+			}
+			return builder.append(" = ").append(value).toString();
+		}
+	}
+
+	/**
+	 * A step in the path of a {@link Change} that accesses a map value by its key.
+	 * <br/>The key is the original reference, not a copy, so maps that compare keys by identity (like {@link java.util.IdentityHashMap}) find it as well.
+	 */
+	public static class MapKey implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final Object key;
+
+		private MapKey(Object key){
+			this.key = key;
+		}
+
+		public Object getKey(){
+			return key;
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(key);
+		}
+	}
+
+	/**
+	 * The path to a value while comparing, linked to its parent to avoid copying.
+	 */
+	private static class Path {
+
+		private static final Path ROOT = new Path(null, null, 0);
+
+		private final Path parent;
+		private final Object step;
+		private final int depth;
+
+		private Path(Path parent, Object step, int depth){
+			this.parent = parent;
+			this.step = step;
+			this.depth = depth;
+		}
+
+		private Path child(Object step){
+			return new Path(this, step, depth + 1);
+		}
+
+		private Object[] toArray(){
+			Object[] steps = new Object[depth];
+			Path path = this;
+			for(int i = depth - 1; i >= 0; i--){
+				steps[i] = path.step;
+				path = path.parent;
+			}
+			return steps;
+		}
+
+		@Override
+		public String toString() {
+			return Arrays.toString(toArray());
+		}
+	}
+
+	/**
+	 * Stands in for null on the pending stack, which does not allow null elements.
+	 */
+	private enum Null {
+		INSTANCE;
+
+		private static Object unmask(Object value){
+			return value == INSTANCE ? null : value;
+		}
+	}
+
+}
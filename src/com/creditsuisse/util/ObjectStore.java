@@ -1,51 +1,201 @@
 package com.creditsuisse.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * A quick access for storing objects to files as JSON using the GSON library.
+ * A quick access for storing objects to files, as JSON using the GSON library by default.
+ * <br/>Objects are streamed from and to the file, the format can be changed with {@link #setCodec(ObjectCodec)}.
+ * <br/>Every write goes to a temporary file first, which is synced and then renamed to the actual location,
+ * so a crash during a write never leaves a corrupted file behind.
+ * <br/>Optionally stores can be written in the background (see {@link #setWriteBehindDelay(long)})
+ * and loaded objects can be cached until the file changes (see {@link #setCacheMode(CacheMode)}).
+ * <br/>With {@link #setHotReload(boolean)} changes made to the file by others are reported to the {@link ChangeListener}s.
  * @author A469627
  *
  */
-public class ObjectStore<T> {
+public class ObjectStore<T> implements AutoCloseable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// marks that no value is waiting to be written (null is a valid value)
+	private static final Object NO_VALUE = new Object();
+
+	// writes all stores in write behind mode, one thread is enough as the writes are limited by the disk anyway
+	private static final ScheduledExecutorService FLUSHER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "ObjectStore Flusher");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	// stores with a pending write, flushed on shutdown as the flusher thread does not keep the JVM alive
+	private static final Set<ObjectStore<?>> PENDING_STORES = Collections.synchronizedSet(new LinkedHashSet<ObjectStore<?>>());
+
+	static{
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			public void run(){
+				ObjectStore<?>[] stores;
+				synchronized (PENDING_STORES) {
+					stores = PENDING_STORES.toArray(new ObjectStore<?>[PENDING_STORES.size()]);
+				}
+				for(ObjectStore<?> store : stores){
+					try{
+						store.flush();
+					}catch(RuntimeException e){
+						e.printStackTrace();
+					}
+				}
+			}
+		});
+	}
 
 	private Class<T> clazz;
 	private File location;
-	private boolean prettyPrint;
+	private volatile ObjectCodec codec;
+
+	// negative if stores are written synchronously
+	private volatile long writeBehindDelay = -1;
+	private final AtomicReference<Object> pendingValue = new AtomicReference<Object>(NO_VALUE);
+	private final Object writeLock = new Object();
+	private volatile boolean closed = false;
+
+	private volatile CacheMode cacheMode = CacheMode.NONE;
+	private volatile CachedValue cache;
+
+	// the modification time and size of the file after the last own write (without value), to tell own writes from others
+	private volatile CachedValue lastWrite;
+	// watches the file while hot reload is enabled, guarded by the write lock
+	private ChangeListener fileListener;
+	private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<ChangeListener>();
 
 	public ObjectStore(Class<T> clazz, File location, boolean prettyPrint){
 		this.clazz = clazz;
 		this.location = location;
-		this.prettyPrint = prettyPrint;
+		this.codec = prettyPrint ? JsonCodec.PRETTY : JsonCodec.COMPACT;
 	}
 
 	public ObjectStore(Class<T> clazz, File location){
 		this(clazz, location, true);
 	}
 	
+	/**
+	 * Defines the format of the file, for example {@link BinaryCodec} or a {@link DeflateCodec} for compression.
+	 * <br/>Existing files are not converted, they can only be read with the codec that wrote them.
+	 * @param codec the codec to use for all further reads and writes
+	 */
+	public void setCodec(ObjectCodec codec){
+		if(codec == null) throw new IllegalArgumentException("Codec must not be null.");
+		// pending values have been stored with the old codec in mind
+		flush();
+		this.codec = codec;
+		cache = null;
+	}
+	
+	/**
+	 * @return the codec defining the format of the file, JSON by default
+	 */
+	public ObjectCodec getCodec(){
+		return codec;
+	}
+	
+	/**
+	 * Enables or disables write behind mode.
+	 * <br/>In write behind mode {@link #store(Object)} returns immediately and the value is written by a background thread after the given delay.
+	 * If the value is stored again before that, only the latest value is written.
+	 * <br/><b>Note:</b> the value is serialized on the background thread, so it must not be modified until it has been written
+	 * (store a copy, for example from {@link Cloner#clone(Object, boolean)}, if that cannot be guaranteed).
+	 * @param writeBehindDelay the delay in milliseconds before a stored value is written, or a negative value to write synchronously
+	 */
+	public void setWriteBehindDelay(long writeBehindDelay){
+		this.writeBehindDelay = writeBehindDelay;
+		if(writeBehindDelay < 0){
+			flush();
+		}
+	}
+	
+	/**
+	 * @return the delay before values are written in write behind mode, or a negative value if stores are written synchronously
+	 */
+	public long getWriteBehindDelay(){
+		return writeBehindDelay;
+	}
+	
+	/**
+	 * Defines whether the last loaded object is kept in memory, see {@link CacheMode}.
+	 * @param cacheMode the new cache mode
+	 */
+	public void setCacheMode(CacheMode cacheMode){
+		if(cacheMode == null) throw new IllegalArgumentException("Cache mode must not be null.");
+		this.cacheMode = cacheMode;
+		if(cacheMode == CacheMode.NONE){
+			cache = null;
+		}
+	}
+	
+	/**
+	 * @return the current cache mode
+	 */
+	public CacheMode getCacheMode(){
+		return cacheMode;
+	}
+	
 	public T get(){
-		if(!location.exists()) return null;
-		FileReader reader = null;
+		// a pending value must not be hidden behind the old file content
+		flush();
+		CacheMode cacheMode = this.cacheMode;
+		if(cacheMode == CacheMode.NONE){
+			if(!location.exists()) return null;
+			return read();
+		}
+
+		BasicFileAttributes attributes;
 		try{
-			reader = new FileReader(location);
-			Gson gson = new Gson();
-			return gson.fromJson(reader, clazz);
+			attributes = Files.readAttributes(location.toPath(), BasicFileAttributes.class);
+		}catch(NoSuchFileException e){
+			cache = null;
+			return null;
+		}catch(IOException e){
+			throw new RuntimeException("Failed to load object from store: " + location.getAbsolutePath(), e);
+		}
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		long size = attributes.size();
+		CachedValue cache = this.cache;
+		if(cache == null || cache.lastModified != lastModified || cache.size != size){
+			cache = new CachedValue(read(), lastModified, size);
+			this.cache = cache;
+		}
+		@SuppressWarnings("unchecked")
+		T value = (T) cache.value;
+		return cacheMode == CacheMode.COPY ? Cloner.clone(value, true) : value;
+	}
+	
+	private T read(){
+		try(BufferedInputStream in = new BufferedInputStream(new FileInputStream(location), BUFFER_SIZE)){
+			return codec.read(in, clazz);
 		}catch(Exception e){
 			throw new RuntimeException("Failed to load object from store: " + location.getAbsolutePath(), e);
-		}finally{
-			if(reader != null){
-				try {
-					reader.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
 		}
 	}
 	
@@ -55,27 +205,194 @@ public class ObjectStore<T> {
 	}
 	
 	public void store(T value){
-		FileOutputStream writer = null;
+		if(closed) throw new IllegalStateException("Store has been closed: " + location.getAbsolutePath());
+		long delay = writeBehindDelay;
+		if(delay < 0){
+			synchronized (writeLock) {
+				// a value still pending from write behind mode is outdated now
+				pendingValue.set(NO_VALUE);
+				write(value);
+			}
+		}else{
+			synchronized (PENDING_STORES) {
+				if(pendingValue.getAndSet(value) != NO_VALUE){
+					// the write is already scheduled and will pick up the new value
+					return;
+				}
+				PENDING_STORES.add(this);
+			}
+			FLUSHER.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try{
+						flush();
+					}catch(RuntimeException e){
+						e.printStackTrace();
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Writes the pending value (if there is one) in write behind mode, does nothing otherwise.
+	 * <br/>Blocks until the value has been written.
+	 */
+	@SuppressWarnings("unchecked")
+	public void flush(){
+		synchronized (writeLock) {
+			Object value = pendingValue.getAndSet(NO_VALUE);
+			if(value != NO_VALUE){
+				try{
+					write((T) value);
+				}finally{
+					synchronized (PENDING_STORES) {
+						if(pendingValue.get() == NO_VALUE) PENDING_STORES.remove(this);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes the pending value (if there is one) and prevents further stores.
+	 */
+	@Override
+	public void close(){
+		closed = true;
+		flush();
+		PENDING_STORES.remove(this);
+		setHotReload(false);
+	}
+	
+	/**
+	 * Enables or disables hot reload.
+	 * <br/>While enabled the file is watched (see {@link FileWatcher}) and the change listeners are notified whenever someone else
+	 * changes it. The cached object (see {@link #setCacheMode(CacheMode)}) is dropped at the same time, so the next {@link #get()} loads the new content.
+	 * @param hotReload true to watch the file
+	 */
+	public void setHotReload(boolean hotReload){
+		synchronized (writeLock) {
+			if(hotReload == (fileListener != null)) return;
+			if(hotReload){
+				fileListener = new ChangeListener() {
+					@Override
+					public void onChange() {
+						fileChanged();
+					}
+				};
+				FileWatcher.watch(location, fileListener);
+			}else{
+				FileWatcher.unwatch(location, fileListener);
+				fileListener = null;
+			}
+		}
+	}
+	
+	public boolean isHotReload(){
+		synchronized (writeLock) {
+			return fileListener != null;
+		}
+	}
+	
+	/**
+	 * Adds a listener that is notified when someone else changed the file, see {@link #setHotReload(boolean)}.
+	 * @param listener the listener to add
+	 */
+	public void addChangeListener(ChangeListener listener){
+		changeListeners.add(listener);
+	}
+	
+	public void removeChangeListener(ChangeListener listener){
+		changeListeners.remove(listener);
+	}
+	
+	private void fileChanged(){
+		CachedValue lastWrite = this.lastWrite;
+		CachedValue state = readState(location);
+		if(lastWrite != null && state != null && lastWrite.lastModified == state.lastModified && lastWrite.size == state.size){
+			// the notification is about our own write
+			return;
+		}
+		cache = null;
+		for(ChangeListener listener : changeListeners){
+			listener.onChange();
+		}
+	}
+	
+	/**
+	 * @return the modification time and size of the given file (without value) or null if it does not exist
+	 */
+	private static CachedValue readState(File file){
 		try{
-			if(!location.exists()){
-				location.getParentFile().mkdirs();
-				location.createNewFile();
+			BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+			return new CachedValue(null, attributes.lastModifiedTime().toMillis(), attributes.size());
+		}catch(IOException e){
+			return null;
+		}
+	}
+	
+	private void write(T value){
+		// the stored value may be modified by the caller later, so it cannot become the cached instance
+		cache = null;
+		File directory = location.getAbsoluteFile().getParentFile();
+		File temp = null;
+		try{
+			directory.mkdirs();
+			temp = FileUtil.createTempFileFor(location);
+			FileOutputStream out = new FileOutputStream(temp);
+			try(BufferedOutputStream bufferedOut = new BufferedOutputStream(out, BUFFER_SIZE)){
+				codec.write(bufferedOut, value, clazz);
+				bufferedOut.flush();
+				// the content must be on the disk before the rename makes it visible
+				out.getFD().sync();
+			}
+			// a rename keeps modification time and size, they have to be known before the watcher may report the change
+			lastWrite = readState(temp);
+			try{
+				Files.move(temp.toPath(), location.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}catch(AtomicMoveNotSupportedException e){
+				Files.move(temp.toPath(), location.toPath(), StandardCopyOption.REPLACE_EXISTING);
 			}
-			writer = new FileOutputStream(location);
-			Gson gson = prettyPrint ? new GsonBuilder().setPrettyPrinting().create() : new Gson();
-			String json = gson.toJson(value);
-			writer.write(json.getBytes());
+			temp = null;
 		}catch(Exception e){
-			throw new RuntimeException("Failed to load object from store: " + location.getAbsolutePath(), e);
+			throw new RuntimeException("Failed to store object to store: " + location.getAbsolutePath(), e);
 		}finally{
-			if(writer != null){
-				try {
-					writer.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+			if(temp != null && !temp.delete()){
+				temp.deleteOnExit();
 			}
 		}
 	}
 	
+	/**
+	 * Defines how {@link ObjectStore#get()} caches the loaded object.
+	 * <br/>A cached object is only used as long as the modification time and size of the file did not change.
+	 */
+	public static enum CacheMode {
+		/**
+		 * Every call parses the file again (the default).
+		 */
+		NONE,
+		/**
+		 * All calls share the same instance until the file changes, callers must not modify it.
+		 */
+		SHARED,
+		/**
+		 * Every call gets a deep copy of the cached instance, which is usually much cheaper than parsing the file.
+		 */
+		COPY;
+	}
+	
+	private static class CachedValue {
+		private final Object value;
+		private final long lastModified;
+		private final long size;
+		
+		private CachedValue(Object value, long lastModified, long size){
+			this.value = value;
+			this.lastModified = lastModified;
+			this.size = size;
+		}
+	}
+	
 }
@@ -0,0 +1,182 @@
+package com.creditsuisse.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A {@link CloneTraversal} that spreads the work over a {@link ForkJoinPool}.
+ * <br/>Large arrays (which also back array lists and hash maps) are split into chunks that are cloned concurrently,
+ * and whenever the pool runs out of work part of the pending objects is handed to a new task.
+ * <br/>All traversals of one clone share a striped identity map, so every original is cloned exactly once
+ * and shared references and cycles are preserved just like in a sequential clone.
+ */
+class ParallelCloneTraversal extends CloneTraversal {
+
+	// arrays with more elements than this are split into chunks of this size
+	private static final int ARRAY_CHUNK_SIZE = 4096;
+
+	// the amount of pending objects at which half of them may be handed to another task
+	private static final int PENDING_SPLIT_SIZE = 64;
+
+	// the amount of segments of the identity map, must be a power of two
+	private static final int SEGMENT_COUNT = 64;
+
+	private final ExactEqualityMap<Object, Object>[] segments;
+
+	// tasks forked by this traversal that have to complete before it is done, with the traversals they run
+	private final List<ForkJoinTask<?>> forked = new ArrayList<ForkJoinTask<?>>();
+	private final List<ParallelCloneTraversal> children = new ArrayList<ParallelCloneTraversal>();
+
+	// containers whose elements are cloned by forked tasks, filled once those are joined
+	private final List<ContainerFill> joinedFills = new ArrayList<ContainerFill>();
+
+	@SuppressWarnings("unchecked")
+	ParallelCloneTraversal(){
+		this((ExactEqualityMap<Object, Object>[]) new ExactEqualityMap<?, ?>[SEGMENT_COUNT]);
+		for(int i = 0; i < SEGMENT_COUNT; i++){
+			segments[i] = new ExactEqualityMap<Object, Object>();
+		}
+	}
+
+	private ParallelCloneTraversal(ExactEqualityMap<Object, Object>[] segments){
+		super(null);
+		this.segments = segments;
+	}
+
+	/**
+	 * Deep clones the given object using the given pool.
+	 * @param object the root of the graph to clone
+	 * @param pool the pool to run the clone in
+	 * @return the clone of the given root
+	 */
+	Object run(final Object object, ForkJoinPool pool){
+		final Object[] result = new Object[1];
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				result[0] = run(object);
+			}
+		});
+		return result[0];
+	}
+
+	private ExactEqualityMap<Object, Object> segmentFor(Object original){
+		int hash = System.identityHashCode(original);
+		return segments[(hash ^ (hash >>> 16)) & (SEGMENT_COUNT - 1)];
+	}
+
+	@Override
+	protected Object lookup(Object original) {
+		ExactEqualityMap<Object, Object> segment = segmentFor(original);
+		synchronized (segment) {
+			return segment.get(original);
+		}
+	}
+
+	@Override
+	protected Object register(Object original, Object clone) {
+		ExactEqualityMap<Object, Object> segment = segmentFor(original);
+		synchronized (segment) {
+			Object registered = segment.get(original);
+			if(registered != null){
+				return registered;
+			}
+			segment.put(original, clone);
+			return clone;
+		}
+	}
+
+	@Override
+	void drain() {
+		while(!pending.isEmpty()){
+			if(pending.size() >= PENDING_SPLIT_SIZE * 2 && ForkJoinTask.getSurplusQueuedTaskCount() <= 2){
+				splitPending();
+			}
+			Object clone = pending.pop();
+			Object original = pending.pop();
+			fill(original, clone);
+		}
+		for(ForkJoinTask<?> task : forked){
+			task.join();
+		}
+		forked.clear();
+		// the order does not matter, fillDeferred orders the hashed containers by what they contain
+		for(ParallelCloneTraversal child : children){
+			deferred.addAll(child.deferred);
+		}
+		children.clear();
+		for(ContainerFill fill : joinedFills){
+			fill.fill();
+		}
+		joinedFills.clear();
+	}
+
+	@Override
+	protected void fillContainer(ContainerFill fill) {
+		if(!fill.isHashed() && fill.size() > ARRAY_CHUNK_SIZE){
+			// the elements may still be cloned by forked tasks
+			joinedFills.add(fill);
+		}else{
+			super.fillContainer(fill);
+		}
+	}
+
+	/**
+	 * Hands half of the pending objects to a new task.
+	 */
+	private void splitPending(){
+		final ParallelCloneTraversal child = new ParallelCloneTraversal(segments);
+		int pairs = pending.size() / 4;
+		for(int i = 0; i < pairs; i++){
+			// take from the bottom of the stack, those are the oldest entries and usually have the biggest sub graphs
+			Object original = pending.pollLast();
+			Object clone = pending.pollLast();
+			child.pending.push(original);
+			child.pending.push(clone);
+		}
+		fork(child, new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				child.drain();
+			}
+		});
+	}
+
+	@Override
+	protected void fillArray(final Object[] array, int from, int to) {
+		while(to - from > ARRAY_CHUNK_SIZE){
+			final int chunkFrom = to - ARRAY_CHUNK_SIZE;
+			final int chunkTo = to;
+			final ParallelCloneTraversal child = new ParallelCloneTraversal(segments);
+			fork(child, new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					child.fillArray(array, chunkFrom, chunkTo);
+					child.drain();
+				}
+			});
+			to = chunkFrom;
+		}
+		super.fillArray(array, from, to);
+	}
+
+	private void fork(ParallelCloneTraversal child, ForkJoinTask<?> task){
+		children.add(child);
+		if(ForkJoinTask.inForkJoinPool()){
+			task.fork();
+		}else{
+			ForkJoinPool.commonPool().execute(task);
+		}
+		forked.add(task);
+	}
+
+}
@@ -0,0 +1,248 @@
+package com.creditsuisse.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.creditsuisse.util.Cloner.CloneException;
+
+/**
+ * Creates deep copies of a template object graph without having to analyze the graph for every copy.
+ * <br/>The graph is walked once when the prototype is created and flattened into a list of nodes in allocation order.
+ * For every reference of every node it is recorded whether it points to another node (by index) or to a shared immutable value.
+ * Each call to {@link #newCopy()} then just allocates all nodes and wires them up again, without identity map lookups or reflection.
+ * <br/>The prototype works on its own snapshot of the template, later changes to the template do not affect the copies.
+ * @param <T> the type of the template
+ * @see Cloner#prototype(Object)
+ */
+public class Prototype<T> {
+
+	private static final int OBJECT = 0;
+	private static final int FLAT_ARRAY = 1;
+	private static final int ARRAY = 2;
+	private static final int CONTAINER = 3;
+
+	// the nodes of the snapshot in allocation order, the root is always the first one
+	private final Object[] nodes;
+	private final ClonePlan[] plans;
+	private final int[] kinds;
+
+	// per node and reference (field, array element or container element): the index of the referenced node or -1 for a constant
+	private final int[][] referenceNodes;
+	// per node and reference: the value to use if the reference is not a node (null or an immutable value)
+	private final Object[][] referenceConstants;
+
+	// indices of the hashed containers, each one after the hashed containers reachable from its elements
+	private final int[] hashedContainers;
+
+	private final T root;
+
+	Prototype(T template){
+		// work on a private snapshot so changes to the template cannot leak into the plan
+		T snapshot = Cloner.clone(template, true);
+		this.root = snapshot;
+
+		ExactEqualityMap<Object, Integer> indices = new ExactEqualityMap<Object, Integer>();
+		List<Object> nodes = new ArrayList<Object>();
+		ArrayDeque<Object> pending = new ArrayDeque<Object>();
+		if(isNode(snapshot)){
+			indices.put(snapshot, 0);
+			nodes.add(snapshot);
+			pending.add(snapshot);
+		}
+
+		List<int[]> referenceNodes = new ArrayList<int[]>();
+		List<Object[]> referenceConstants = new ArrayList<Object[]>();
+		List<Integer> kinds = new ArrayList<Integer>();
+		List<Integer> hashedContainers = new ArrayList<Integer>();
+		try{
+			// breadth first, so the indices match the order in which nodes are analyzed
+			while(!pending.isEmpty()){
+				Object node = pending.poll();
+				ClonePlan plan = ClonePlan.of(node.getClass());
+				Object[] references;
+				int kind;
+				if(plan.getContainerCloner() != null){
+					kind = CONTAINER;
+					references = plan.getContainerCloner().elements(node);
+					if(plan.getContainerCloner().isHashed()){
+						hashedContainers.add(kinds.size());
+					}
+				}else if(plan.isFlatArray()){
+					kind = FLAT_ARRAY;
+					references = new Object[0];
+				}else if(plan.isArray()){
+					kind = ARRAY;
+					references = (Object[]) node;
+				}else{
+					kind = OBJECT;
+					references = new Object[plan.getReferenceCount()];
+					for(int i = 0; i < references.length; i++){
+						references[i] = plan.getReference(node, i);
+					}
+				}
+
+				int[] targetNodes = new int[references.length];
+				Object[] constants = new Object[references.length];
+				for(int i = 0; i < references.length; i++){
+					Object reference = references[i];
+					if(isNode(reference)){
+						Integer index = indices.get(reference);
+						if(index == null){
+							index = nodes.size();
+							indices.put(reference, index);
+							nodes.add(reference);
+							pending.add(reference);
+						}
+						targetNodes[i] = index;
+					}else{
+						targetNodes[i] = -1;
+						constants[i] = reference;
+					}
+				}
+				kinds.add(kind);
+				referenceNodes.add(targetNodes);
+				referenceConstants.add(constants);
+			}
+		}catch(CloneException e){
+			throw e;
+		}catch(Throwable e){
+			throw new CloneException(template, e);
+		}
+
+		this.nodes = nodes.toArray();
+		this.plans = new ClonePlan[this.nodes.length];
+		this.kinds = new int[this.nodes.length];
+		for(int i = 0; i < this.nodes.length; i++){
+			this.plans[i] = ClonePlan.of(this.nodes[i].getClass());
+			this.kinds[i] = kinds.get(i);
+		}
+		this.referenceNodes = referenceNodes.toArray(new int[referenceNodes.size()][]);
+		this.referenceConstants = referenceConstants.toArray(new Object[referenceConstants.size()][]);
+		this.hashedContainers = orderByContainment(hashedContainers, this.nodes.length, this.referenceNodes);
+	}
+
+	/**
+	 * Orders the hashed containers so each one comes after all hashed containers reachable from its elements,
+	 * the same order in which {@link CloneTraversal} fills them.
+	 * <br/>The node graph is walked depth first (without recursion) from each container and the containers are taken in post-order.
+	 * @param hashedContainers the indices of the hashed containers
+	 * @return the indices in the order the containers have to be filled
+	 */
+	private static int[] orderByContainment(List<Integer> hashedContainers, int nodeCount, int[][] referenceNodes){
+		int[] order = new int[hashedContainers.size()];
+		int ordered = 0;
+		boolean[] hashed = new boolean[nodeCount];
+		for(int container : hashedContainers){
+			hashed[container] = true;
+		}
+		boolean[] visited = new boolean[nodeCount];
+		// the nodes on the current path and the index of their next reference to visit
+		int[] path = new int[nodeCount];
+		int[] positions = new int[nodeCount];
+		for(int start : hashedContainers){
+			if(visited[start]){
+				continue;
+			}
+			visited[start] = true;
+			int depth = 0;
+			path[0] = start;
+			positions[0] = 0;
+			while(depth >= 0){
+				int node = path[depth];
+				int[] targets = referenceNodes[node];
+				if(positions[depth] < targets.length){
+					int target = targets[positions[depth]++];
+					if(target != -1 && !visited[target]){
+						visited[target] = true;
+						depth++;
+						path[depth] = target;
+						positions[depth] = 0;
+					}
+				}else{
+					if(hashed[node]){
+						order[ordered++] = node;
+					}
+					depth--;
+				}
+			}
+		}
+		return order;
+	}
+
+	private static boolean isNode(Object object){
+		return object != null && !Cloner.isImmutable(object.getClass());
+	}
+
+	/**
+	 * Creates a new deep copy of the template.
+	 * @return a copy that shares no mutable objects with the template or other copies
+	 */
+	@SuppressWarnings("unchecked")
+	public T newCopy(){
+		if(nodes.length == 0){
+			// the template itself is immutable (or null)
+			return root;
+		}
+		try{
+			Object[] copies = new Object[nodes.length];
+			for(int i = 0; i < nodes.length; i++){
+				switch(kinds[i]){
+				case CONTAINER:
+					copies[i] = plans[i].getContainerCloner().newInstance(nodes[i]);
+					break;
+				case FLAT_ARRAY:
+				case ARRAY:
+					copies[i] = plans[i].copyArray(nodes[i]);
+					break;
+				default:
+					copies[i] = plans[i].newInstance();
+				}
+			}
+
+			for(int i = 0; i < nodes.length; i++){
+				int[] targetNodes = referenceNodes[i];
+				Object[] constants = referenceConstants[i];
+				switch(kinds[i]){
+				case OBJECT:
+					plans[i].copyPrimitives(nodes[i], copies[i]);
+					for(int r = 0; r < targetNodes.length; r++){
+						plans[i].setReference(copies[i], r, targetNodes[r] == -1 ? constants[r] : copies[targetNodes[r]]);
+					}
+					break;
+				case ARRAY:
+					Object[] array = (Object[]) copies[i];
+					for(int r = 0; r < targetNodes.length; r++){
+						array[r] = targetNodes[r] == -1 ? constants[r] : copies[targetNodes[r]];
+					}
+					break;
+				case CONTAINER:
+					if(!plans[i].getContainerCloner().isHashed()){
+						plans[i].getContainerCloner().fill(copies[i], resolve(i, copies));
+					}
+					break;
+				}
+			}
+
+			for(int i : hashedContainers){
+				plans[i].getContainerCloner().fill(copies[i], resolve(i, copies));
+			}
+			return (T) copies[0];
+		}catch(CloneException e){
+			throw e;
+		}catch(Throwable e){
+			throw new CloneException(root, e);
+		}
+	}
+
+	private Object[] resolve(int node, Object[] copies){
+		int[] targetNodes = referenceNodes[node];
+		Object[] constants = referenceConstants[node];
+		Object[] elements = new Object[targetNodes.length];
+		for(int r = 0; r < targetNodes.length; r++){
+			elements[r] = targetNodes[r] == -1 ? constants[r] : copies[targetNodes[r]];
+		}
+		return elements;
+	}
+
+}
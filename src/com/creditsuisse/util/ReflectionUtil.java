@@ -5,7 +5,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 
 public class ReflectionUtil {
@@ -29,64 +29,131 @@ public class ReflectionUtil {
 		return Modifier.isFinal(field.getModifiers());
 	}
 	
+	/**
+	 * Returns all non static fields declared by the given class and its super classes, super class fields first.
+	 * <br/>The result is cached per class and cannot be modified. The contained {@link Field} objects are shared between all callers,
+	 * so changing their accessibility affects everyone using them.
+	 * @param type the class to get the fields of
+	 * @return an unmodifiable list of the fields
+	 */
 	public static List<Field> getAllFieldsInHierarchy(Class<?> type) {
 		return getAllFieldsInHierarchy(type, false);
 	}
 
+	/**
+	 * Like {@link #getAllFieldsInHierarchy(Class)}, but may also include static fields.
+	 * @param type the class to get the fields of
+	 * @param includeStatic true to include static fields
+	 * @return an unmodifiable list of the fields
+	 */
 	public static List<Field> getAllFieldsInHierarchy(Class<?> type, boolean includeStatic) {
-		List<Field> allFields = new ArrayList<Field>();
-
-		if (type.getSuperclass() != null) {
-			allFields.addAll(getAllFieldsInHierarchy(type.getSuperclass(), true));
-		}
-
-		allFields.addAll(Arrays.asList(type.getDeclaredFields()));
-		
-		if(!includeStatic){
-			Iterator<Field> itr = allFields.iterator();
-			while(itr.hasNext()){
-				Field field = itr.next();
-				if(Modifier.isStatic(field.getModifiers())){
-					itr.remove();
-				}
-			}
-		}
-
-		return allFields;
+		ClassInfo info = CLASS_INFO.get(type);
+		return includeStatic ? info.allFieldList : info.fieldList;
 	}
 	
+	/**
+	 * Returns all non static methods declared by the given class and its super classes, super class methods first.
+	 * <br/>The result is cached per class and cannot be modified. The contained {@link Method} objects are shared between all callers,
+	 * so changing their accessibility affects everyone using them.
+	 * @param type the class to get the methods of
+	 * @return an unmodifiable list of the methods
+	 */
 	public static List<Method> getAllMethodsInHierarchy(Class<?> type) {
 		return getAllMethodsInHierarchy(type, false);
 	}
 
+	/**
+	 * Like {@link #getAllMethodsInHierarchy(Class)}, but may also include static methods.
+	 * @param type the class to get the methods of
+	 * @param includeStatic true to include static methods
+	 * @return an unmodifiable list of the methods
+	 */
 	public static List<Method> getAllMethodsInHierarchy(Class<?> type, boolean includeStatic) {
-		List<Method> allMethods = new ArrayList<Method>();
-		Method[] declaredMethods = type.getDeclaredMethods();
-		if (type.getSuperclass() != null) {
-			Class<?> superClass = type.getSuperclass();
-			allMethods.addAll(getAllMethodsInHierarchy(superClass, true));
+		ClassInfo info = CLASS_INFO.get(type);
+		return includeStatic ? info.allMethodList : info.methodList;
+	}
+	
+	public static boolean isPrimitiveWrapper(Class<?> type){
+		return CLASS_INFO.get(type).primitiveWrapper;
+	}
+	
+	/**
+	 * @param type any class
+	 * @return the wrapper class if the given class is primitive (e.g. Integer for int), otherwise the class itself
+	 */
+	public static Class<?> getWrapperType(Class<?> type){
+		return CLASS_INFO.get(type).wrapperType;
+	}
+	
+	// the metadata of every class is collected once and then reused
+	private static final ClassValue<ClassInfo> CLASS_INFO = new ClassValue<ClassInfo>() {
+		@Override
+		protected ClassInfo computeValue(Class<?> type) {
+			return new ClassInfo(type);
 		}
-		allMethods.addAll(Arrays.asList(declaredMethods));
-
+	};
+	
+	private static class ClassInfo {
 		
-		if(!includeStatic){
-			Iterator<Method> itr = allMethods.iterator();
-			while(itr.hasNext()){
-				Method method = itr.next();
-				if(Modifier.isStatic(method.getModifiers())){
-					itr.remove();
+		private final List<Field> allFieldList;
+		private final List<Field> fieldList;
+		private final List<Method> allMethodList;
+		private final List<Method> methodList;
+		private final boolean primitiveWrapper;
+		private final Class<?> wrapperType;
+		
+		private ClassInfo(Class<?> type){
+			List<Field> allFields = new ArrayList<Field>();
+			List<Method> allMethods = new ArrayList<Method>();
+			if(type.getSuperclass() != null){
+				// reuse the (cached) metadata of the super class
+				ClassInfo superInfo = CLASS_INFO.get(type.getSuperclass());
+				allFields.addAll(superInfo.allFieldList);
+				allMethods.addAll(superInfo.allMethodList);
+			}
+			allFields.addAll(Arrays.asList(type.getDeclaredFields()));
+			allMethods.addAll(Arrays.asList(type.getDeclaredMethods()));
+			
+			List<Field> fields = new ArrayList<Field>(allFields.size());
+			for(Field field : allFields){
+				if(!Modifier.isStatic(field.getModifiers())){
+					fields.add(field);
 				}
 			}
+			List<Method> methods = new ArrayList<Method>(allMethods.size());
+			for(Method method : allMethods){
+				if(!Modifier.isStatic(method.getModifiers())){
+					methods.add(method);
+				}
+			}
+			
+			allFieldList = unmodifiableList(allFields);
+			fieldList = unmodifiableList(fields);
+			allMethodList = unmodifiableList(allMethods);
+			methodList = unmodifiableList(methods);
+			
+			primitiveWrapper = type == Double.class || type == Float.class ||
+					type == Long.class || type == Integer.class ||
+				    type == Short.class || type == Character.class ||
+				    type == Byte.class ||type == Boolean.class;
+			wrapperType = type.isPrimitive() ? wrapperOf(type) : type;
+		}
+		
+		private static <T> List<T> unmodifiableList(List<T> list){
+			return Collections.unmodifiableList(new ArrayList<T>(list));
+		}
+		
+		private static Class<?> wrapperOf(Class<?> primitive){
+			if(primitive == double.class) return Double.class;
+			if(primitive == float.class) return Float.class;
+			if(primitive == long.class) return Long.class;
+			if(primitive == int.class) return Integer.class;
+			if(primitive == short.class) return Short.class;
+			if(primitive == char.class) return Character.class;
+			if(primitive == byte.class) return Byte.class;
+			if(primitive == boolean.class) return Boolean.class;
+			return Void.class;
 		}
-
-		return allMethods;
-	}
-	
-	public static boolean isPrimitiveWrapper(Class<?> type){
-		return type == Double.class || type == Float.class ||
-				type == Long.class || type == Integer.class ||
-			    type == Short.class || type == Character.class ||
-			    type == Byte.class ||type == Boolean.class;
 	}
 	
 	public static Object convertToWrapper(Object primitive){
@@ -2,47 +2,123 @@ package com.creditsuisse.util;
 
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Runs the <code>loopedRun()</code> of many {@link LoopThread}s on a single thread, each at its own loops per second.
+ * <br/>The controlled threads are kept in a priority queue by the time of their next loop, so a tick only touches the threads that are due,
+ * and the looper sleeps until the next one is due instead of spinning.
+ * Adding and removing threads is O(1) and lock free, the queue itself is only ever touched by the looper thread.
+ */
 public class ThreadLooper extends LoopThread implements Serializable{
 	private static final long serialVersionUID = 1L;
 	
-	private Map<LoopThread, Long> controlledThreads;
+	// the current schedule of every controlled thread, replaced when a thread is added again
+	private final ConcurrentHashMap<LoopThread, Schedule> controlledThreads = new ConcurrentHashMap<LoopThread, Schedule>();
+	// added schedules that the looper thread has not put into the queue yet
+	private final Queue<Schedule> added = new ConcurrentLinkedQueue<Schedule>();
+	// only used by the looper thread
+	private final PriorityQueue<Schedule> queue = new PriorityQueue<Schedule>();
+	private final List<Schedule> ran = new ArrayList<Schedule>();
+	private long sequence = 0;
 	
 	public ThreadLooper() {
-		controlledThreads = Collections.synchronizedMap(new HashMap<LoopThread, Long>());
 	}
 
 	public void addThread(LoopThread thread){
-		controlledThreads.put(thread, thread.getStartTime());
+		Schedule schedule = new Schedule(thread, thread.getStartTime());
+		Schedule previous = controlledThreads.put(thread, schedule);
+		if(previous != null) previous.cancelled = true;
+		added.add(schedule);
+		LockSupport.unpark(this);
 	}
 
 	public void removeThread(LoopThread thread){
-		controlledThreads.remove(thread);
+		Schedule schedule = controlledThreads.remove(thread);
+		// dropped by the looper once it comes up in the queue
+		if(schedule != null) schedule.cancelled = true;
 	}
 	
 	public int getThreadCount(){
 		return controlledThreads.size();
 	}
 
+	@Override
+	public void terminate() {
+		super.terminate();
+		LockSupport.unpark(this);
+	}
+
 	@Override
 	public void loopedRun() {
-		Map<LoopThread, Long> controlledThreads;
-		synchronized (this.controlledThreads) {
-			controlledThreads = new HashMap<LoopThread, Long>(this.controlledThreads);
+		Schedule schedule;
+		while((schedule = added.poll()) != null){
+			if(!schedule.cancelled) enqueue(schedule);
 		}
-		for(LoopThread thread : controlledThreads.keySet()){
-			long executionTime = controlledThreads.get(thread);
-			if(executionTime <= System.currentTimeMillis()){
-				thread.loopedRun();
-				long waitTime = (long) (1000 / thread.getLoopsPerSec());
-//				if(waitTime != 100.0f)System.out.println(executionTime + ": Wating " + waitTime);
-				this.controlledThreads.put(thread, executionTime + waitTime);
+
+		long now = System.currentTimeMillis();
+		while((schedule = queue.peek()) != null && schedule.executionTime <= now){
+			queue.poll();
+			if(schedule.cancelled) continue;
+			try{
+				schedule.thread.loopedRun();
+			}catch(RuntimeException e){
+				e.printStackTrace();
 			}
+			float loopsPerSec = schedule.thread.getLoopsPerSec();
+			// no limit means every tick
+			schedule.executionTime = loopsPerSec <= 0 ? now : schedule.executionTime + (long) (1000 / loopsPerSec);
+			ran.add(schedule);
+		}
+		// requeued after the tick, so a thread that is behind (or unlimited) runs at most once per tick
+		for(Schedule requeued : ran){
+			if(!requeued.cancelled) enqueue(requeued);
+		}
+		ran.clear();
+
+		schedule = queue.peek();
+		if(!running || !added.isEmpty()) return;
+		if(schedule == null){
+			LockSupport.park(this);
+		}else{
+			long waitTime = schedule.executionTime - System.currentTimeMillis();
+			if(waitTime > 0) LockSupport.parkNanos(this, waitTime * 1000000);
+		}
+	}
+
+	private void enqueue(Schedule schedule){
+		schedule.sequence = sequence++;
+		queue.add(schedule);
+	}
+	
+	/**
+	 * The time of the next loop of a controlled thread, threads due at the same time run in the order they were queued.
+	 */
+	private static class Schedule implements Comparable<Schedule>{
+		
+		private final LoopThread thread;
+		private long executionTime;
+		private long sequence;
+		private volatile boolean cancelled = false;
+		
+		Schedule(LoopThread thread, long executionTime){
+			this.thread = thread;
+			this.executionTime = executionTime;
+		}
+
+		@Override
+		public int compareTo(Schedule other) {
+			if(executionTime != other.executionTime) return executionTime < other.executionTime ? -1 : 1;
+			return Long.compare(sequence, other.sequence);
 		}
+		
 	}
 	
 	
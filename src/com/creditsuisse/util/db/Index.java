@@ -0,0 +1,28 @@
+package com.creditsuisse.util.db;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field of a {@link TableName} class to be indexed, so {@link Table#find(String, Object)} does not have to scan all rows.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Index {
+
+	Kind value() default Kind.SORTED;
+
+	public enum Kind {
+		/**
+		 * Keeps the values in order, supports equality and range queries, the field must be primitive or {@link Comparable}.
+		 */
+		SORTED,
+		/**
+		 * Supports equality queries only.
+		 */
+		HASH
+	}
+
+}
@@ -0,0 +1,225 @@
+package com.creditsuisse.util.db;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.creditsuisse.util.ReflectionUtil;
+
+/**
+ * The index of a field annotated with {@link Index}: maps each value of the field to the ids of the rows that have it.
+ * <br/>Changes are made by the table while it holds its write lock, but the maps are concurrent,
+ * so queries walk the index without locking (the iteration is weakly consistent, like the one of a {@link ConcurrentHashMap}).
+ * <br/>A value with a single row maps directly to its id, only values shared by several rows get a set of ids.
+ */
+class SecondaryIndex {
+
+	private final Field field;
+	private final Class<?> valueType;
+	private final Index.Kind kind;
+	// the id or the Ids of each value, the rows whose field is null are kept apart since the maps do not allow null keys
+	private final ConcurrentMap<Object, Object> postings;
+	private final Set<Object> nullIds = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+	SecondaryIndex(Field field){
+		if(Modifier.isStatic(field.getModifiers())) throw new IllegalArgumentException("An @Index field must not be static: " + field);
+		this.field = field;
+		this.valueType = ReflectionUtil.getWrapperType(field.getType());
+		this.kind = field.getAnnotation(Index.class).value();
+		if(kind == Index.Kind.SORTED){
+			if(!Comparable.class.isAssignableFrom(valueType)) throw new IllegalArgumentException("A sorted @Index field must be primitive or comparable: " + field);
+			postings = new ConcurrentSkipListMap<Object, Object>();
+		}else{
+			postings = new ConcurrentHashMap<Object, Object>();
+		}
+		field.setAccessible(true);
+	}
+
+	Object valueOf(Object row){
+		try{
+			return field.get(row);
+		}catch(IllegalAccessException e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Converts a value of a query to the type of the field, numbers may be given as any {@link Number} (e.g. an int for a long field).
+	 */
+	Object normalize(Object value){
+		if(value == null || valueType.isInstance(value)) return value;
+		if(value instanceof Number){
+			Number number = (Number) value;
+			if(valueType == Long.class) return number.longValue();
+			if(valueType == Integer.class) return number.intValue();
+			if(valueType == Double.class) return number.doubleValue();
+			if(valueType == Float.class) return number.floatValue();
+			if(valueType == Short.class) return number.shortValue();
+			if(valueType == Byte.class) return number.byteValue();
+		}
+		throw new IllegalArgumentException("Field " + field.getName() + " is a " + valueType.getSimpleName() + ", not a " + value.getClass().getSimpleName());
+	}
+
+	/**
+	 * Updates the index for a changed row, the table must hold its write lock.
+	 * @param id the id of the row
+	 * @param oldRow the previous version of the row, null if it has been inserted
+	 * @param newRow the new version of the row, null if it has been deleted
+	 */
+	void update(Object id, Object oldRow, Object newRow){
+		Object oldValue = oldRow == null ? null : valueOf(oldRow);
+		Object newValue = newRow == null ? null : valueOf(newRow);
+		if(oldRow != null && newRow != null && (oldValue == null ? newValue == null : oldValue.equals(newValue))) return;
+		if(oldRow != null) remove(oldValue, id);
+		if(newRow != null) add(newValue, id);
+	}
+
+	private void add(Object value, Object id){
+		if(value == null){
+			nullIds.add(id);
+			return;
+		}
+		Object posting = postings.get(value);
+		if(posting == null){
+			postings.put(value, id);
+		}else if(posting instanceof Ids){
+			((Ids) posting).add(id);
+		}else{
+			Ids ids = new Ids();
+			ids.add(posting);
+			ids.add(id);
+			postings.put(value, ids);
+		}
+	}
+
+	private void remove(Object value, Object id){
+		if(value == null){
+			nullIds.remove(id);
+			return;
+		}
+		Object posting = postings.get(value);
+		if(posting instanceof Ids){
+			Ids ids = (Ids) posting;
+			ids.remove(id);
+			if(ids.size() == 1){
+				postings.put(value, ids.iterator().next());
+			}
+		}else if(posting != null && posting.equals(id)){
+			postings.remove(value);
+		}
+	}
+
+	/**
+	 * @return the ids of the rows whose field is equal to the given (normalized) value
+	 */
+	Cursor find(Object value){
+		if(value == null) return new Cursor(Collections.<Object, Object>emptyMap().entrySet().iterator(), nullIds.iterator());
+		Object posting = postings.get(value);
+		if(posting == null) return emptyCursor();
+		return new Cursor(Collections.singletonMap(value, posting).entrySet().iterator(), null);
+	}
+
+	/**
+	 * @param from the lowest (normalized) value, null for no lower bound
+	 * @param to the highest (normalized) value, null for no upper bound
+	 * @return the ids of the rows whose field is in the given range, ordered by the value of the field
+	 */
+	Cursor findRange(Object from, boolean fromInclusive, Object to, boolean toInclusive){
+		if(kind != Index.Kind.SORTED) throw new IllegalArgumentException("Range queries need a sorted index, field " + field.getName() + " has a hash index");
+		ConcurrentNavigableMap<Object, Object> sorted = (ConcurrentNavigableMap<Object, Object>) postings;
+		if(from != null && to != null){
+			@SuppressWarnings("unchecked")
+			int comparison = ((Comparable<Object>) from).compareTo(to);
+			if(comparison > 0 || comparison == 0 && !(fromInclusive && toInclusive)) return emptyCursor();
+			sorted = sorted.subMap(from, fromInclusive, to, toInclusive);
+		}else if(from != null){
+			sorted = sorted.tailMap(from, fromInclusive);
+		}else if(to != null){
+			sorted = sorted.headMap(to, toInclusive);
+		}
+		return new Cursor(sorted.entrySet().iterator(), null);
+	}
+
+	private Cursor emptyCursor(){
+		return new Cursor(Collections.<Object, Object>emptyMap().entrySet().iterator(), null);
+	}
+
+	/**
+	 * A set of ids shared by several rows, distinguishable from an id that happens to be a set.
+	 */
+	private static class Ids extends ConcurrentHashMap<Object, Boolean> {
+
+		private static final long serialVersionUID = 1L;
+
+		void add(Object id){
+			put(id, Boolean.TRUE);
+		}
+
+		Iterator<Object> iterator(){
+			return keySet().iterator();
+		}
+
+	}
+
+	/**
+	 * Walks the ids of a query lazily, together with the value they have been found for.
+	 */
+	class Cursor {
+
+		private final Iterator<Map.Entry<Object, Object>> values;
+		private Iterator<Object> ids;
+		private Object value;
+		private Object id;
+
+		private Cursor(Iterator<Map.Entry<Object, Object>> values, Iterator<Object> ids){
+			this.values = values;
+			this.ids = ids;
+		}
+
+		/**
+		 * Moves to the next id.
+		 * @return false if there are no more ids
+		 */
+		boolean next(){
+			while(ids == null || !ids.hasNext()){
+				if(!values.hasNext()) return false;
+				Map.Entry<Object, Object> entry = values.next();
+				value = entry.getKey();
+				Object posting = entry.getValue();
+				ids = posting instanceof Ids ? ((Ids) posting).iterator() : Collections.singleton(posting).iterator();
+			}
+			id = ids.next();
+			return true;
+		}
+
+		Object getId(){
+			return id;
+		}
+
+		/**
+		 * @return the value the current id has been found for
+		 */
+		Object getValue(){
+			return value;
+		}
+
+		/**
+		 * @param value a value returned by {@link #getValue()}
+		 * @param row the current version of the row whose id has been found for the value
+		 * @return true if the row still has the value
+		 */
+		boolean matches(Object value, Object row){
+			Object current = valueOf(row);
+			return value == null ? current == null : value.equals(current);
+		}
+
+	}
+
+}
@@ -0,0 +1,664 @@
+package com.creditsuisse.util.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.creditsuisse.util.BinaryCodec;
+import com.creditsuisse.util.Cloner;
+import com.creditsuisse.util.FileUtil;
+import com.creditsuisse.util.ObjectCodec;
+import com.creditsuisse.util.ReflectionUtil;
+
+/**
+ * A table of a {@link TableStore}: the rows of a class annotated with {@link TableName}, identified by the field annotated with {@link ID}.
+ * <br/>All rows are held in memory in a hash index by id, so point lookups never touch the disk.
+ * Every change is first appended to the write ahead log of the table, batched changes ({@link #insertAll(Collection)},
+ * {@link #updateAll(Collection)}, {@link #deleteAll(Collection)}) are appended with a single write.
+ * Once the log has grown large enough, a snapshot of all rows is written in the background and the log is started over.
+ * <br/>The table keeps its own copies of the rows: inserted and updated rows are cloned, and so are the rows returned by {@link #get(Object)},
+ * changing a row only has an effect once it is passed to {@link #update(Object)}.
+ * <br/>Fields annotated with {@link Index} are indexed as well, {@link #find(String, Object)} and {@link #findRange(String, Object, Object)}
+ * return the matching rows lazily instead of scanning the table.
+ * <br/>This class is thread safe, reads run concurrently.
+ * @param <T> the type of the rows
+ */
+public class Table<T> {
+
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+
+	private static final String SNAPSHOT_SUFFIX = ".snapshot";
+	private static final int SNAPSHOT_MAGIC = 0x54424C53; // "TBLS"
+	private static final byte SNAPSHOT_VERSION = 1;
+
+	// the rows a query fetches with a single lock
+	private static final int QUERY_PAGE_SIZE = 256;
+
+	// a snapshot is not worth it for small logs
+	private static final long MIN_SNAPSHOT_LOG_SIZE = 4 * 1024 * 1024;
+
+	private static final ExecutorService SNAPSHOTTER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Table Snapshotter");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final Class<T> type;
+	private final String name;
+	private final Field idField;
+	private final Map<String, SecondaryIndex> indexes = new LinkedHashMap<String, SecondaryIndex>();
+	private final File directory;
+	private final ObjectCodec codec = new BinaryCodec();
+
+	// guards the rows and the log
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<Object, T> rows = new HashMap<Object, T>();
+	private WriteAheadLog log;
+	// the size of the last snapshot, the log may grow as large before the next one
+	private long snapshotSize;
+
+	// set while a background snapshot is queued or running, so at most one is queued at a time
+	private final AtomicBoolean snapshotting = new AtomicBoolean();
+	private final Object snapshotLock = new Object();
+	private volatile boolean syncOnWrite = true;
+	private boolean closed = false;
+
+	Table(Class<T> type, File directory){
+		this.type = type;
+		this.name = TableStore.getTableName(type);
+		this.idField = getIdField(type);
+		this.directory = directory;
+		for(Field field : ReflectionUtil.getAllFieldsInHierarchy(type)){
+			if(field.isAnnotationPresent(Index.class)){
+				indexes.put(field.getName(), new SecondaryIndex(field));
+			}
+		}
+		try{
+			load();
+		}catch(IOException e){
+			throw new RuntimeException("Failed to open table " + name + ": " + directory.getAbsolutePath(), e);
+		}
+		// indexed once all changes are replayed
+		for(SecondaryIndex index : indexes.values()){
+			for(Map.Entry<Object, T> row : rows.entrySet()){
+				index.update(row.getKey(), null, row.getValue());
+			}
+		}
+	}
+
+	private static Field getIdField(Class<?> type){
+		Field idField = null;
+		for(Field field : ReflectionUtil.getAllFieldsInHierarchy(type)){
+			if(field.isAnnotationPresent(ID.class)){
+				if(idField != null) throw new IllegalArgumentException("More than one @ID field in " + type.getName());
+				idField = field;
+			}
+		}
+		if(idField == null) throw new IllegalArgumentException("No @ID field in " + type.getName());
+		if(Modifier.isStatic(idField.getModifiers())) throw new IllegalArgumentException("The @ID field must not be static: " + idField);
+		idField.setAccessible(true);
+		return idField;
+	}
+
+	/**
+	 * Loads the latest snapshot and replays the log written after it.
+	 */
+	private void load() throws IOException {
+		long snapshotGeneration = -1;
+		File snapshot = getSnapshotFile();
+		if(snapshot.exists()){
+			snapshotSize = snapshot.length();
+			try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 64 * 1024))){
+				if(in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a table snapshot: " + snapshot.getAbsolutePath());
+				byte version = in.readByte();
+				if(version != SNAPSHOT_VERSION) throw new IOException("Unsupported snapshot version " + version + ": " + snapshot.getAbsolutePath());
+				snapshotGeneration = in.readLong();
+				int count = in.readInt();
+				for(int i = 0; i < count; i++){
+					T row = codec.read(in, type);
+					rows.put(getId(row), row);
+				}
+			}
+		}
+
+		long generation = snapshotGeneration + 1;
+		for(long existing : WriteAheadLog.generations(directory, name)){
+			// the older generations are left over from a crash right after a snapshot
+			if(existing <= snapshotGeneration) continue;
+			for(byte[] record : WriteAheadLog.read(directory, name, existing)){
+				replay(record);
+			}
+			generation = existing;
+		}
+		log = new WriteAheadLog(directory, name, generation);
+		log.deleteUpTo(snapshotGeneration);
+	}
+
+	private void replay(byte[] record) throws IOException {
+		ByteArrayInputStream in = new ByteArrayInputStream(record, 1, record.length - 1);
+		if(record[0] == PUT){
+			T row = codec.read(in, type);
+			rows.put(getId(row), row);
+		}else{
+			rows.remove(codec.read(in, Object.class));
+		}
+	}
+
+	public Class<T> getType(){
+		return type;
+	}
+
+	/**
+	 * @return the name of the table, from {@link TableName}
+	 */
+	public String getName(){
+		return name;
+	}
+
+	/**
+	 * @param syncOnWrite true (the default) to force every write to the disk before it returns, false to leave that to the OS (or {@link #sync()})
+	 */
+	public void setSyncOnWrite(boolean syncOnWrite){
+		this.syncOnWrite = syncOnWrite;
+	}
+
+	public boolean isSyncOnWrite(){
+		return syncOnWrite;
+	}
+
+	/**
+	 * @param row a row of this table
+	 * @return the value of its {@link ID} field
+	 */
+	public Object getId(T row){
+		try{
+			Object id = idField.get(row);
+			if(id == null) throw new IllegalArgumentException("The id of a row of table " + name + " is null: " + row);
+			return id;
+		}catch(IllegalAccessException e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Looks up a row by its id.
+	 * @param id the id
+	 * @return a copy of the row or null if there is none
+	 */
+	public T get(Object id){
+		T row;
+		lock.readLock().lock();
+		try{
+			checkOpen();
+			row = rows.get(id);
+		}finally{
+			lock.readLock().unlock();
+		}
+		// the stored rows are never changed, so they can be copied outside of the lock
+		return row == null ? null : Cloner.clone(row, true);
+	}
+
+	public boolean contains(Object id){
+		lock.readLock().lock();
+		try{
+			checkOpen();
+			return rows.containsKey(id);
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return a copy of the ids of all rows
+	 */
+	public Set<Object> getIds(){
+		lock.readLock().lock();
+		try{
+			checkOpen();
+			return new HashSet<Object>(rows.keySet());
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	public int size(){
+		lock.readLock().lock();
+		try{
+			return rows.size();
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds the rows whose field is equal to the given value, using the index of the field.
+	 * @param field the name of a field annotated with {@link Index}
+	 * @param value the value, numbers may be given as any {@link Number}
+	 * @return the matching rows, fetched lazily in pages while iterating
+	 * @see Results
+	 */
+	public Iterable<T> find(final String field, Object value){
+		final SecondaryIndex index = getIndex(field);
+		final Object normalized = index.normalize(value);
+		return new Iterable<T>() {
+			@Override
+			public Iterator<T> iterator() {
+				return new Results(index.find(normalized));
+			}
+		};
+	}
+
+	/**
+	 * Finds the rows whose field is at least from and less than to, using the sorted index of the field.
+	 * @param field the name of a field annotated with {@link Index} of kind {@link Index.Kind#SORTED}
+	 * @param from the lowest value (inclusive), null for no lower bound
+	 * @param to the highest value (exclusive), null for no upper bound
+	 * @return the matching rows ordered by the field, fetched lazily in pages while iterating
+	 */
+	public Iterable<T> findRange(String field, Object from, Object to){
+		return findRange(field, from, true, to, false);
+	}
+
+	/**
+	 * Finds the rows whose field is in the given range, using the sorted index of the field.
+	 * <br/>Rows whose field is null are never in a range.
+	 * @param field the name of a field annotated with {@link Index} of kind {@link Index.Kind#SORTED}
+	 * @param from the lowest value, null for no lower bound
+	 * @param fromInclusive true to include rows whose field is equal to from
+	 * @param to the highest value, null for no upper bound
+	 * @param toInclusive true to include rows whose field is equal to to
+	 * @return the matching rows ordered by the field, fetched lazily in pages while iterating
+	 */
+	public Iterable<T> findRange(String field, Object from, final boolean fromInclusive, Object to, final boolean toInclusive){
+		final SecondaryIndex index = getIndex(field);
+		final Object normalizedFrom = index.normalize(from);
+		final Object normalizedTo = index.normalize(to);
+		// fails early on a hash index
+		index.findRange(normalizedFrom, fromInclusive, normalizedTo, toInclusive);
+		return new Iterable<T>() {
+			@Override
+			public Iterator<T> iterator() {
+				return new Results(index.findRange(normalizedFrom, fromInclusive, normalizedTo, toInclusive));
+			}
+		};
+	}
+
+	/**
+	 * Finds the rows whose string field starts with the given prefix, e.g. for filtering as the user types.
+	 * @param field the name of a string field annotated with {@link Index} of kind {@link Index.Kind#SORTED}
+	 * @param prefix the prefix
+	 * @return the matching rows ordered by the field, fetched lazily in pages while iterating
+	 */
+	public Iterable<T> findPrefix(String field, String prefix){
+		if(prefix.isEmpty()) return findRange(field, null, null);
+		return findRange(field, prefix, true, prefixEnd(prefix), false);
+	}
+
+	/**
+	 * @return the lowest string greater than all strings starting with the prefix, null if there is none (the prefix only consists of {@link Character#MAX_VALUE})
+	 */
+	private static String prefixEnd(String prefix){
+		for(int i = prefix.length() - 1; i >= 0; i--){
+			char c = prefix.charAt(i);
+			if(c != Character.MAX_VALUE){
+				return prefix.substring(0, i) + (char) (c + 1);
+			}
+		}
+		return null;
+	}
+
+	private SecondaryIndex getIndex(String field){
+		SecondaryIndex index = indexes.get(field);
+		if(index == null) throw new IllegalArgumentException("No @Index on field " + field + " of " + type.getName());
+		return index;
+	}
+
+	public void insert(T row){
+		insertAll(Collections.singleton(row));
+	}
+
+	/**
+	 * Inserts all given rows with a single write, either all rows are inserted or none.
+	 * @param rows the rows to insert
+	 * @throws IllegalArgumentException if a row with the same id already exists
+	 */
+	public void insertAll(Collection<? extends T> rows){
+		write(rows, true);
+	}
+
+	public void update(T row){
+		updateAll(Collections.singleton(row));
+	}
+
+	/**
+	 * Replaces the rows with the same ids as the given rows with a single write, either all rows are updated or none.
+	 * @param rows the new versions of the rows
+	 * @throws IllegalArgumentException if there is no row with the same id
+	 */
+	public void updateAll(Collection<? extends T> rows){
+		write(rows, false);
+	}
+
+	public boolean delete(Object id){
+		return deleteAll(Collections.singleton(id)) > 0;
+	}
+
+	/**
+	 * Deletes the rows with the given ids with a single write, ids without a row are ignored.
+	 * @param ids the ids of the rows to delete
+	 * @return the number of deleted rows
+	 */
+	public int deleteAll(Collection<?> ids){
+		List<Object> deleted = new ArrayList<Object>(ids.size());
+		List<byte[]> records = new ArrayList<byte[]>(ids.size());
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		boolean snapshot;
+		lock.writeLock().lock();
+		try{
+			checkOpen();
+			for(Object id : ids){
+				if(rows.containsKey(id) && !deleted.contains(id)){
+					deleted.add(id);
+					records.add(encode(DELETE, id, Object.class, buffer));
+				}
+			}
+			if(records.isEmpty()) return 0;
+			log.append(records, syncOnWrite);
+			for(Object id : deleted){
+				updateIndexes(id, rows.remove(id), null);
+			}
+			snapshot = isSnapshotDue();
+		}catch(IOException e){
+			throw new RuntimeException("Failed to write to table " + name + ": " + directory.getAbsolutePath(), e);
+		}finally{
+			lock.writeLock().unlock();
+		}
+		if(snapshot) snapshotInBackground();
+		return deleted.size();
+	}
+
+	private void write(Collection<? extends T> rows, boolean insert){
+		// copied and serialized before the table is locked
+		Map<Object, T> copies = new HashMap<Object, T>((int) (rows.size() / 0.75f) + 1);
+		List<byte[]> records = new ArrayList<byte[]>(rows.size());
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		for(T row : rows){
+			T copy = Cloner.clone(row, true);
+			Object id = getId(copy);
+			if(copies.put(id, copy) != null) throw new IllegalArgumentException("Duplicate id " + id + " for table " + name);
+			records.add(encode(PUT, copy, type, buffer));
+		}
+		if(records.isEmpty()) return;
+
+		boolean snapshot;
+		lock.writeLock().lock();
+		try{
+			checkOpen();
+			for(Object id : copies.keySet()){
+				if(this.rows.containsKey(id) == insert){
+					throw new IllegalArgumentException((insert ? "Duplicate id " : "No row with id ") + id + " in table " + name);
+				}
+			}
+			log.append(records, syncOnWrite);
+			for(Map.Entry<Object, T> copy : copies.entrySet()){
+				updateIndexes(copy.getKey(), this.rows.put(copy.getKey(), copy.getValue()), copy.getValue());
+			}
+			snapshot = isSnapshotDue();
+		}catch(IOException e){
+			throw new RuntimeException("Failed to write to table " + name + ": " + directory.getAbsolutePath(), e);
+		}finally{
+			lock.writeLock().unlock();
+		}
+		if(snapshot) snapshotInBackground();
+	}
+
+	private void updateIndexes(Object id, T oldRow, T newRow){
+		for(SecondaryIndex index : indexes.values()){
+			index.update(id, oldRow, newRow);
+		}
+	}
+
+	private byte[] encode(byte operation, Object value, Class<?> valueType, ByteArrayOutputStream buffer){
+		buffer.reset();
+		buffer.write(operation);
+		try{
+			codec.write(buffer, value, valueType);
+		}catch(IOException e){
+			throw new RuntimeException("Failed to serialize " + value + " for table " + name, e);
+		}
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * The rows of a query: the index is walked without locking and the rows are fetched a page at a time,
+	 * so only a page of rows is held no matter how many rows match, and nothing is fetched beyond what is iterated.
+	 * <br/>Like the iterators of the concurrent collections, the results are weakly consistent:
+	 * rows changed while iterating may or may not be returned, but every returned row matches the query at the time it is fetched.
+	 * Each returned row is a copy.
+	 */
+	private class Results implements Iterator<T> {
+
+		private final SecondaryIndex.Cursor cursor;
+		private final List<T> page = new ArrayList<T>(QUERY_PAGE_SIZE);
+		// the ids of the next page and the values they have been found for
+		private final List<Object> pageIds = new ArrayList<Object>(QUERY_PAGE_SIZE);
+		private final List<Object> pageValues = new ArrayList<Object>(QUERY_PAGE_SIZE);
+		private int position = 0;
+		private boolean exhausted = false;
+
+		Results(SecondaryIndex.Cursor cursor){
+			this.cursor = cursor;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while(position == page.size() && !exhausted){
+				fetch();
+			}
+			return position < page.size();
+		}
+
+		private void fetch(){
+			page.clear();
+			pageIds.clear();
+			pageValues.clear();
+			position = 0;
+			while(pageIds.size() < QUERY_PAGE_SIZE && cursor.next()){
+				pageIds.add(cursor.getId());
+				pageValues.add(cursor.getValue());
+			}
+			exhausted = pageIds.size() < QUERY_PAGE_SIZE;
+			if(pageIds.isEmpty()) return;
+			lock.readLock().lock();
+			try{
+				checkOpen();
+				for(int i = 0; i < pageIds.size(); i++){
+					T row = rows.get(pageIds.get(i));
+					// the row may have changed since the index has been walked
+					if(row != null && cursor.matches(pageValues.get(i), row)) page.add(row);
+				}
+			}finally{
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public T next() {
+			if(!hasNext()) throw new NoSuchElementException();
+			return Cloner.clone(page.get(position++), true);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	private boolean isSnapshotDue(){
+		return log.size() > Math.max(MIN_SNAPSHOT_LOG_SIZE, snapshotSize);
+	}
+
+	/**
+	 * Forces all written changes to the disk.
+	 */
+	public void sync(){
+		lock.writeLock().lock();
+		try{
+			checkOpen();
+			log.sync();
+		}catch(IOException e){
+			throw new RuntimeException("Failed to sync table " + name + ": " + directory.getAbsolutePath(), e);
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void snapshotInBackground(){
+		if(snapshotting.compareAndSet(false, true)){
+			SNAPSHOTTER.execute(new Runnable() {
+				@Override
+				public void run() {
+					try{
+						synchronized (snapshotLock) {
+							doSnapshot();
+						}
+					}catch(RuntimeException e){
+						e.printStackTrace();
+					}finally{
+						snapshotting.set(false);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes a snapshot of all rows and deletes the log written before it, blocks until done.
+	 * <br/>This usually happens automatically in the background, it speeds up opening the table next time.
+	 */
+	public void snapshot(){
+		synchronized (snapshotLock) {
+			doSnapshot();
+		}
+	}
+
+	private void doSnapshot(){
+		// the rows as of now, the log is started over so writers can continue meanwhile
+		List<T> snapshotRows;
+		long generation;
+		lock.writeLock().lock();
+		try{
+			checkOpen();
+			if(log.size() == 0) return;
+			snapshotRows = new ArrayList<T>(rows.values());
+			generation = log.rotate();
+		}catch(IOException e){
+			throw new RuntimeException("Failed to write to table " + name + ": " + directory.getAbsolutePath(), e);
+		}finally{
+			lock.writeLock().unlock();
+		}
+
+		File snapshot = getSnapshotFile();
+		File temp = null;
+		try{
+			temp = FileUtil.createTempFileFor(snapshot);
+			try(FileOutputStream file = new FileOutputStream(temp)){
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeByte(SNAPSHOT_VERSION);
+				out.writeLong(generation);
+				out.writeInt(snapshotRows.size());
+				for(T row : snapshotRows){
+					codec.write(out, row, type);
+				}
+				out.flush();
+				file.getFD().sync();
+			}
+			try{
+				Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}catch(AtomicMoveNotSupportedException e){
+				Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			temp = null;
+		}catch(IOException e){
+			throw new RuntimeException("Failed to write snapshot of table " + name + ": " + snapshot.getAbsolutePath(), e);
+		}finally{
+			if(temp != null) temp.delete();
+		}
+
+		lock.writeLock().lock();
+		try{
+			snapshotSize = snapshot.length();
+			// the rows of these generations are all in the snapshot now
+			log.deleteUpTo(generation);
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	private File getSnapshotFile(){
+		return new File(directory, name + SNAPSHOT_SUFFIX);
+	}
+
+	private void checkOpen(){
+		if(closed) throw new IllegalStateException("Table " + name + " is closed");
+	}
+
+	/**
+	 * Writes a snapshot if the log is not empty and closes the table.
+	 */
+	void close(){
+		synchronized (snapshotLock) {
+			lock.writeLock().lock();
+			try{
+				if(closed) return;
+			}finally{
+				lock.writeLock().unlock();
+			}
+			doSnapshot();
+			lock.writeLock().lock();
+			try{
+				closed = true;
+				log.close();
+			}catch(IOException e){
+				throw new RuntimeException("Failed to close table " + name + ": " + directory.getAbsolutePath(), e);
+			}finally{
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+package com.creditsuisse.util.db;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An embedded store of tables, one for every class annotated with {@link TableName}, kept in a single directory.
+ * <br/>Each table holds its rows in memory and persists them with a write ahead log and periodic snapshots, see {@link Table}.
+ * <pre>
+ * TableStore store = new TableStore(new File("data"));
+ * Table&lt;Trade&gt; trades = store.getTable(Trade.class);
+ * trades.insertAll(newTrades);
+ * Trade trade = trades.get(tradeId);
+ * </pre>
+ */
+public class TableStore implements AutoCloseable {
+
+	private final File directory;
+	// guarded by this
+	private final Map<Class<?>, Table<?>> tables = new HashMap<Class<?>, Table<?>>();
+	private final Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+	private boolean closed = false;
+
+	/**
+	 * Opens the store in the given directory, creates it if it does not exist.
+	 * @param directory the directory the tables are kept in
+	 */
+	public TableStore(File directory){
+		this.directory = directory;
+		directory.mkdirs();
+		if(!directory.isDirectory()) throw new RuntimeException("Failed to create table store directory: " + directory.getAbsolutePath());
+	}
+
+	public File getDirectory(){
+		return directory;
+	}
+
+	/**
+	 * Opens the table of the given type, its rows are loaded on the first call.
+	 * @param type a class annotated with {@link TableName} that has a field annotated with {@link ID}
+	 * @return the table
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <T> Table<T> getTable(Class<T> type){
+		if(closed) throw new IllegalStateException("Table store is closed: " + directory.getAbsolutePath());
+		Table<T> table = (Table<T>) tables.get(type);
+		if(table == null){
+			String name = getTableName(type);
+			Class<?> existing = types.get(name);
+			if(existing != null) throw new IllegalArgumentException("Table " + name + " is already used by " + existing.getName());
+			table = new Table<T>(type, directory);
+			tables.put(type, table);
+			types.put(name, type);
+		}
+		return table;
+	}
+
+	static String getTableName(Class<?> type){
+		TableName tableName = type.getAnnotation(TableName.class);
+		if(tableName == null) throw new IllegalArgumentException("No @TableName on " + type.getName());
+		String name = tableName.name();
+		if(!name.matches("[A-Za-z0-9_\\-]+")) throw new IllegalArgumentException("Invalid table name \"" + name + "\" on " + type.getName());
+		return name;
+	}
+
+	/**
+	 * Writes a snapshot of every open table, see {@link Table#snapshot()}.
+	 */
+	public void snapshot(){
+		for(Table<?> table : getTables()){
+			table.snapshot();
+		}
+	}
+
+	/**
+	 * Forces the changes of every open table to the disk.
+	 */
+	public void sync(){
+		for(Table<?> table : getTables()){
+			table.sync();
+		}
+	}
+
+	private synchronized List<Table<?>> getTables(){
+		return new ArrayList<Table<?>>(tables.values());
+	}
+
+	/**
+	 * Closes all tables, writing a snapshot of each one that has changed since the last snapshot.
+	 */
+	@Override
+	public synchronized void close(){
+		if(closed) return;
+		closed = true;
+		for(Table<?> table : tables.values()){
+			table.close();
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+package com.creditsuisse.util.db;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The write ahead log of a table: checksummed records appended to a file before the change is applied in memory.
+ * <br/>The log is split into generations, a new generation is started whenever a snapshot is taken,
+ * so the older generations can be deleted once the snapshot is complete.
+ */
+class WriteAheadLog {
+
+	private static final String SUFFIX = ".wal";
+
+	// length and checksum of a record
+	private static final int HEADER_SIZE = 4;
+	private static final int TRAILER_SIZE = 4;
+
+	private final File directory;
+	private final String name;
+	private long generation;
+	private FileChannel channel;
+	private long size;
+
+	/**
+	 * Opens (or creates) the given generation for appending.
+	 */
+	WriteAheadLog(File directory, String name, long generation) throws IOException {
+		this.directory = directory;
+		this.name = name;
+		open(generation);
+	}
+
+	private void open(long generation) throws IOException {
+		this.generation = generation;
+		channel = FileChannel.open(fileOf(directory, name, generation).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		size = channel.size();
+		channel.position(size);
+	}
+
+	static File fileOf(File directory, String name, long generation){
+		return new File(directory, name + "." + generation + SUFFIX);
+	}
+
+	/**
+	 * @return the generations of the log of the given table that exist on the disk, in ascending order
+	 */
+	static List<Long> generations(File directory, final String name){
+		List<Long> generations = new ArrayList<Long>();
+		File[] files = directory.listFiles();
+		if(files == null) return generations;
+		String prefix = name + ".";
+		for(File file : files){
+			String fileName = file.getName();
+			if(fileName.startsWith(prefix) && fileName.endsWith(SUFFIX)){
+				try{
+					generations.add(Long.parseLong(fileName.substring(prefix.length(), fileName.length() - SUFFIX.length())));
+				}catch(NumberFormatException e){
+					// not one of ours
+				}
+			}
+		}
+		Collections.sort(generations, new Comparator<Long>() {
+			@Override
+			public int compare(Long a, Long b) {
+				return a.compareTo(b);
+			}
+		});
+		return generations;
+	}
+
+	long getGeneration(){
+		return generation;
+	}
+
+	/**
+	 * @return the bytes written to the current generation
+	 */
+	long size(){
+		return size;
+	}
+
+	/**
+	 * Appends the given records with a single write.
+	 * @param records the payloads of the records
+	 * @param sync true to force the records to the disk before returning
+	 */
+	void append(List<byte[]> records, boolean sync) throws IOException {
+		ByteBuffer[] buffers = new ByteBuffer[records.size()];
+		long length = 0;
+		for(int i = 0; i < buffers.length; i++){
+			byte[] payload = records.get(i);
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length + TRAILER_SIZE);
+			buffer.putInt(payload.length).put(payload).putInt(checksum(payload, 0, payload.length));
+			buffer.flip();
+			buffers[i] = buffer;
+			length += buffer.remaining();
+		}
+		long written = 0;
+		while(written < length){
+			written += channel.write(buffers);
+		}
+		size += length;
+		if(sync) channel.force(false);
+	}
+
+	void sync() throws IOException {
+		channel.force(false);
+	}
+
+	/**
+	 * Closes the current generation and starts the next one.
+	 * @return the generation that has been closed
+	 */
+	long rotate() throws IOException {
+		long closed = generation;
+		channel.force(true);
+		channel.close();
+		open(generation + 1);
+		return closed;
+	}
+
+	/**
+	 * Deletes all generations up to (including) the given one.
+	 */
+	void deleteUpTo(long generation){
+		for(long existing : generations(directory, name)){
+			if(existing <= generation){
+				File file = fileOf(directory, name, existing);
+				if(!file.delete()) file.deleteOnExit();
+			}
+		}
+	}
+
+	void close() throws IOException {
+		channel.force(true);
+		channel.close();
+	}
+
+	/**
+	 * Reads all records of the given generation, an incomplete or corrupted tail (from a crash during a write) is cut off.
+	 * @return the payloads of the records
+	 */
+	static List<byte[]> read(File directory, String name, long generation) throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>();
+		try(FileChannel channel = FileChannel.open(fileOf(directory, name, generation).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)){
+			long size = channel.size();
+			long position = 0;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while(position + HEADER_SIZE + TRAILER_SIZE <= size){
+				header.clear();
+				readFully(channel, header, position);
+				int length = header.getInt(0);
+				if(length < 0 || position + HEADER_SIZE + length + TRAILER_SIZE > size) break;
+				ByteBuffer record = ByteBuffer.allocate(length + TRAILER_SIZE);
+				readFully(channel, record, position + HEADER_SIZE);
+				if(record.getInt(length) != checksum(record.array(), 0, length)) break;
+				byte[] payload = new byte[length];
+				System.arraycopy(record.array(), 0, payload, 0, length);
+				records.add(payload);
+				position += HEADER_SIZE + length + TRAILER_SIZE;
+			}
+			if(position < size){
+				channel.truncate(position);
+				channel.force(true);
+			}
+		}
+		return records;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()){
+			if(channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+		}
+	}
+
+	private static int checksum(byte[] bytes, int offset, int length){
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+}